@@ -0,0 +1,100 @@
+import java.util.ArrayList;
+import java.util.Random;
+
+import benchmarks.Workload;
+
+/*
+ * Workload over Part3: the corpus text, its graph, and a template of the requested length that
+ * has at least one sentence (the tags along a random walk from a word). Queries go through one
+ * Engine, as a server's would, so MEMOIZED, HEURISTIC and SAMPLE reuse its caches across
+ * operations. Searches take turns over starting words that share the template's first tag pair,
+ * so MEMOIZED measures completions reused from other queries rather than one query repeated.
+ */
+public class Part3Workload implements Workload {
+	private static final int STARTING_WORDS = 64;
+
+	private String text;
+	private Part3.Graph graph;
+	private Part3.Engine engine;
+	private String startingWord;
+	private ArrayList<String> sentenceSpec;
+	private final ArrayList<String> startingWords = new ArrayList<String>();
+	private int next;
+	private final Part3.SearchOptions options = new Part3.SearchOptions();
+
+	public void setUp(int vocabulary, int tags, int branching, double zipf, double ambiguity, int length, long seed) {
+		text = CorpusGenerator.generate(new CorpusGenerator.Settings().setVocabulary(vocabulary).setTagCount(tags)
+				.setEdges(vocabulary * branching).setZipf(zipf).setAmbiguity(ambiguity).setSeed(seed));
+		graph = Part3.load(text);
+		engine = new Part3.Engine(graph);
+		Random random = new Random(seed);
+		while (true) {
+			int start = random.nextInt(graph.size());
+			ArrayList<String> spec = new ArrayList<String>();
+			int word = start;
+			int pos = -1;
+			while (spec.size() < length) {
+				int[] edge = randomEdge(word, pos, random);
+				if (edge == null) {
+					break;
+				}
+				if (spec.isEmpty()) {
+					spec.add(graph.getTag(edge[1]));
+				}
+				word = graph.getTarget(edge[0]);
+				pos = edge[2];
+				spec.add(graph.getTag(pos));
+			}
+			if (spec.size() == length) {
+				startingWord = graph.getWord(start);
+				sentenceSpec = spec;
+				// Then other words with an edge for the first tag pair
+				startingWords.add(startingWord);
+				int pos1 = graph.getTagId(spec.get(0));
+				int pos2 = graph.getTagId(spec.get(1));
+				for (int other = 0; other < graph.size() && startingWords.size() < STARTING_WORDS; other++) {
+					int bucket = graph.getBucket(other, pos1, pos2);
+					if (other != start && graph.getEdgeEnd(bucket) > graph.getEdgeStart(bucket)) {
+						startingWords.add(graph.getWord(other));
+					}
+				}
+				return;
+			}
+		}
+	}
+
+	// { edge, pos1, pos2 } of a random out-edge of word tagged pos1 (any tag if pos1 is -1), null if none
+	private int[] randomEdge(int word, int pos1, Random random) {
+		ArrayList<int[]> edges = new ArrayList<int[]>();
+		for (int from = 0; from < graph.getTagCount(); from++) {
+			if (pos1 >= 0 && from != pos1) {
+				continue;
+			}
+			for (int to = 0; to < graph.getTagCount(); to++) {
+				int bucket = graph.getBucket(word, from, to);
+				for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+					edges.add(new int[] { e, from, to });
+				}
+			}
+		}
+		return edges.isEmpty() ? null : edges.get(random.nextInt(edges.size()));
+	}
+
+	public Object load() {
+		return Part3.load(text);
+	}
+
+	public Object search(String strategy) {
+		String word = startingWords.get(next);
+		next = (next + 1) % startingWords.size();
+		return engine.generateResult(word, sentenceSpec, strategy, options);
+	}
+
+	public Object sample(int count, long seed) {
+		return engine.generateSamples(startingWord, sentenceSpec, count, seed);
+	}
+
+	public Object topK(int k) {
+		return engine.generateTopK(startingWord, sentenceSpec, k);
+	}
+}
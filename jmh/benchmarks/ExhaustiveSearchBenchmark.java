@@ -0,0 +1,60 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Best-sentence queries for the strategies whose worst-case cost grows as branching ^ length,
+ * so the lengths stop well short of SearchBenchmark's.
+ *
+ * java -jar target/benchmarks.jar ExhaustiveSearchBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class ExhaustiveSearchBenchmark {
+	@Param({ "BREADTH_FIRST", "DEPTH_FIRST", "PARALLEL_DEPTH_FIRST", "HEURISTIC" })
+	public String strategy;
+
+	@Param({ "4", "5", "6" })
+	public int length;
+
+	@Param({ "5000", "50000" })
+	public int vocabulary;
+
+	@Param({ "4", "20" })
+	public int tags;
+
+	@Param({ "4", "16" })
+	public int branching;
+
+	@Param("1.0")
+	public double zipf;
+
+	private Workload workload;
+
+	@Setup
+	public void setUp() {
+		workload = Workload.create();
+		workload.setUp(vocabulary, tags, branching, zipf, 0, length, 486);
+	}
+
+	@Benchmark
+	public Object search() {
+		return workload.search(strategy);
+	}
+}
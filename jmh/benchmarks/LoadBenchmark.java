@@ -0,0 +1,50 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * Parsing the corpus text into a graph.
+ *
+ * java -jar target/benchmarks.jar LoadBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class LoadBenchmark {
+	@Param({ "5000", "50000" })
+	public int vocabulary;
+
+	@Param({ "4", "20" })
+	public int tags;
+
+	@Param({ "4", "16" })
+	public int branching;
+
+	private Workload workload;
+
+	@Setup
+	public void setUp() {
+		workload = Workload.create();
+		workload.setUp(vocabulary, tags, branching, 1.0, 0, 2, 486);
+	}
+
+	@Benchmark
+	public Object load() {
+		return workload.load();
+	}
+}
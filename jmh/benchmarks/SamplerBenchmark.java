@@ -0,0 +1,62 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * generateSamples() and generateTopK(), which return many sentences per query, so one operation
+ * is one call and the per-sentence cost is the score divided by count or k.
+ *
+ * java -jar target/benchmarks.jar SamplerBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SamplerBenchmark {
+	@Param({ "4", "8", "12" })
+	public int length;
+
+	@Param({ "5000", "50000" })
+	public int vocabulary;
+
+	@Param({ "4", "20" })
+	public int tags;
+
+	@Param({ "4", "16" })
+	public int branching;
+
+	@Param({ "1", "1000" })
+	public int count;
+
+	private Workload workload;
+
+	@Setup
+	public void setUp() {
+		workload = Workload.create();
+		workload.setUp(vocabulary, tags, branching, 1.0, 0, length, 486);
+	}
+
+	@Benchmark
+	public Object sample() {
+		return workload.sample(count, 486);
+	}
+
+	@Benchmark
+	public Object topK() {
+		return workload.topK(count);
+	}
+}
@@ -0,0 +1,64 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/*
+ * One best-sentence query per operation for the strategies whose cost stays polynomial in the
+ * template length. Queries share one Engine, so MEMOIZED runs with the completions that earlier
+ * operations cached. The exhaustive strategies are in ExhaustiveSearchBenchmark.
+ *
+ * java -jar target/benchmarks.jar SearchBenchmark -prof gc
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(2)
+public class SearchBenchmark {
+	@Param({ "BRANCH_AND_BOUND", "VITERBI", "BEAM", "MEMOIZED" })
+	public String strategy;
+
+	@Param({ "4", "6", "8", "10", "12" })
+	public int length;
+
+	@Param({ "5000", "50000" })
+	public int vocabulary;
+
+	@Param({ "4", "20" })
+	public int tags;
+
+	@Param({ "4", "16" })
+	public int branching;
+
+	@Param("1.0")
+	public double zipf;
+
+	@Param({ "0", "0.15" })
+	public double ambiguity;
+
+	private Workload workload;
+
+	@Setup
+	public void setUp() {
+		workload = Workload.create();
+		workload.setUp(vocabulary, tags, branching, zipf, ambiguity, length, 486);
+	}
+
+	@Benchmark
+	public Object search() {
+		return workload.search(strategy);
+	}
+}
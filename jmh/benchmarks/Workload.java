@@ -0,0 +1,40 @@
+package benchmarks;
+
+/*
+ * The operations the benchmarks measure, on one synthetic graph from CorpusGenerator.
+ *
+ * JMH only generates code for benchmarks in a named package while Part3 lives in the default
+ * package, so the benchmarks reach it through this interface and Part3Workload, the default
+ * package implementation. create() is the only reflective call and runs during setup.
+ */
+public interface Workload {
+	/*
+	 * vocabulary - number of words
+	 * tags - number of tags, T0 .. T(tags - 1)
+	 * branching - mean out-degree; degrees follow a Zipfian distribution with exponent zipf
+	 * ambiguity - chance of each further tag per word, see CorpusGenerator
+	 * length - template length of the queries
+	 * seed - seed of the corpus and of the query
+	 */
+	void setUp(int vocabulary, int tags, int branching, double zipf, double ambiguity, int length, long seed);
+
+	// Parses the corpus text into a graph
+	Object load();
+
+	// Best sentence with the given strategy for the next of the queries sharing the template
+	Object search(String strategy);
+
+	// count sentences drawn for the query
+	Object sample(int count, long seed);
+
+	// k best sentences for the query
+	Object topK(int k);
+
+	static Workload create() {
+		try {
+			return (Workload) Class.forName("Part3Workload").getDeclaredConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,213 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+
+/*
+ * Seeded generator of synthetic bigram graphs in the input.txt format, word/TAG//word/TAG//prob.
+ *
+ * Words are named w0, w1, ... by rank. Out-degrees follow a Zipfian distribution over rank, so a
+ * few low-ranked words behave like function words ("a", "the") with very many successors while
+ * most words have only a handful. Successors are drawn with the same Zipfian bias, and the
+ * probabilities of every word's out-edges sum to 1. The same settings and seed always produce the
+ * same file.
+ *
+ * Each word has one tag from the tag set, plus each further tag with probability -ambiguity in
+ * turn, as with "saw" (VBD, NN) in input.txt, where about 12% of words start edges under more than
+ * one tag. A word's first edges start from each of its tags in turn, the rest from a random one,
+ * and every edge goes to a random tag of its successor. Words with fewer edges than tags cannot
+ * show them all, so -ambiguity 0.15 gives about 11% at the default degrees.
+ *
+ * CorpusGenerator <output> [-vocab N] [-edges N] [-zipf S] [-maxdegree N] [-tags A,B,...] [-ambiguity P] [-seed N]
+ */
+public class CorpusGenerator {
+	static final String[] DEFAULT_TAGS = { "DT", "NN", "NNS", "NNP", "JJ", "JJS", "VB", "VBD", "VBZ", "VBP", "VBG", "VBN",
+			"IN", "RB", "PRP", "MD", "CC", "EX", "TO", "WP" };
+
+	static class Settings {
+		int vocabulary = 10000;
+		int edges = 200000; // approximate, the Zipfian degrees are rounded and capped
+		double zipf = 1.0;
+		int maxDegree = 2000;
+		String[] tags = DEFAULT_TAGS;
+		double ambiguity = 0; // chance of each further tag per word
+		long seed = 486;
+
+		public Settings setVocabulary(int vocabulary) { this.vocabulary = vocabulary; return this; }
+		public Settings setEdges(int edges) { this.edges = edges; return this; }
+		public Settings setZipf(double zipf) { this.zipf = zipf; return this; }
+		public Settings setMaxDegree(int maxDegree) { this.maxDegree = maxDegree; return this; }
+		public Settings setTags(String[] tags) { this.tags = tags; return this; }
+		public Settings setSeed(long seed) { this.seed = seed; return this; }
+
+		public Settings setAmbiguity(double ambiguity) {
+			if (!(ambiguity >= 0 && ambiguity < 1)) {
+				throw new IllegalArgumentException("ambiguity must be in [0, 1): " + ambiguity);
+			}
+			this.ambiguity = ambiguity;
+			return this;
+		}
+
+		// Tags T0 .. T(count - 1), for tag sets larger or smaller than the default
+		public Settings setTagCount(int count) {
+			tags = new String[count];
+			for (int i = 0; i < count; i++) {
+				tags[i] = "T" + i;
+			}
+			return this;
+		}
+	}
+
+	/*
+	 * Cumulative Zipfian weights 1 / (rank + 1)^s, sampled by binary search
+	 */
+	static class Zipf {
+		private final double[] cumulative;
+
+		Zipf(int size, double exponent) {
+			cumulative = new double[size];
+			double total = 0;
+			for (int rank = 0; rank < size; rank++) {
+				total += weight(rank, exponent);
+				cumulative[rank] = total;
+			}
+		}
+
+		static double weight(int rank, double exponent) {
+			return 1 / Math.pow(rank + 1, exponent);
+		}
+
+		double total() { return cumulative[cumulative.length - 1]; }
+
+		int sample(Random random) {
+			double value = random.nextDouble() * total();
+			int low = 0;
+			int high = cumulative.length - 1;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumulative[mid] <= value) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			return low;
+		}
+	}
+
+	public static void write(Settings settings, Writer out) throws IOException {
+		if (settings.vocabulary < 2 || settings.tags.length == 0) {
+			throw new IllegalArgumentException("need at least 2 words and 1 tag");
+		}
+		Random random = new Random(settings.seed);
+		Zipf zipf = new Zipf(settings.vocabulary, settings.zipf);
+		int maxDegree = Math.min(settings.maxDegree, settings.vocabulary - 1);
+
+		String[][] tags = new String[settings.vocabulary][];
+		for (int word = 0; word < tags.length; word++) {
+			tags[word] = wordTags(settings, random);
+		}
+
+		HashSet<Integer> targets = new HashSet<Integer>();
+		for (int word = 0; word < settings.vocabulary; word++) {
+			long degree = Math.round(settings.edges * Zipf.weight(word, settings.zipf) / zipf.total());
+			degree = Math.max(1, Math.min(maxDegree, degree));
+
+			// Distinct successors; give up on collisions after a bounded number of draws
+			targets.clear();
+			int[] successors = new int[(int) degree];
+			double[] weights = new double[(int) degree];
+			int count = 0;
+			double total = 0;
+			for (int attempt = 0; count < degree && attempt < degree * 8; attempt++) {
+				int target = zipf.sample(random);
+				if (target != word && targets.add(target)) {
+					successors[count] = target;
+					weights[count] = Zipf.weight(target, settings.zipf) * (0.5 + random.nextDouble());
+					total += weights[count];
+					count++;
+				}
+			}
+			for (int i = 0; i < count; i++) {
+				String tag = i < tags[word].length ? tags[word][i] : pick(tags[word], random); // every tag starts at least one edge
+				out.write("w" + word + "/" + tag + "//w" + successors[i] + "/" + pick(tags[successors[i]], random)
+						+ "//" + (weights[i] / total) + "\n");
+			}
+		}
+	}
+
+	// One random tag, then each other tag with probability ambiguity until one is refused
+	private static String[] wordTags(Settings settings, Random random) {
+		String[] tags = { settings.tags[random.nextInt(settings.tags.length)] };
+		while (settings.ambiguity > 0 && tags.length < settings.tags.length && random.nextDouble() < settings.ambiguity) {
+			String tag = settings.tags[random.nextInt(settings.tags.length)];
+			while (Arrays.asList(tags).contains(tag)) {
+				tag = settings.tags[random.nextInt(settings.tags.length)];
+			}
+			tags = Arrays.copyOf(tags, tags.length + 1);
+			tags[tags.length - 1] = tag;
+		}
+		return tags;
+	}
+
+	// Draws nothing from random for words with a single tag, so ambiguity 0 reproduces earlier files
+	private static String pick(String[] tags, Random random) {
+		return tags.length == 1 ? tags[0] : tags[random.nextInt(tags.length)];
+	}
+
+	public static String generate(Settings settings) {
+		StringWriter out = new StringWriter();
+		try {
+			write(settings, out);
+		}
+		catch (IOException e) {
+			throw new IllegalStateException(e);
+		}
+		return out.toString();
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.err.println("usage: CorpusGenerator <output> [-vocab N] [-edges N] [-zipf S] [-maxdegree N] [-tags A,B,...] [-ambiguity P] [-seed N]");
+			System.exit(1);
+		}
+		Settings settings = new Settings();
+		for (int i = 1; i + 1 < args.length; i += 2) {
+			String value = args[i + 1];
+			if (args[i].equals("-vocab")) {
+				settings.setVocabulary(Integer.parseInt(value));
+			}
+			else if (args[i].equals("-edges")) {
+				settings.setEdges(Integer.parseInt(value));
+			}
+			else if (args[i].equals("-zipf")) {
+				settings.setZipf(Double.parseDouble(value));
+			}
+			else if (args[i].equals("-maxdegree")) {
+				settings.setMaxDegree(Integer.parseInt(value));
+			}
+			else if (args[i].equals("-tags")) {
+				settings.setTags(value.split(","));
+			}
+			else if (args[i].equals("-ambiguity")) {
+				settings.setAmbiguity(Double.parseDouble(value));
+			}
+			else if (args[i].equals("-seed")) {
+				settings.setSeed(Long.parseLong(value));
+			}
+			else {
+				throw new IllegalArgumentException("unknown option " + args[i]);
+			}
+		}
+		try (BufferedWriter out = Files.newBufferedWriter(Paths.get(args[0]), StandardCharsets.UTF_8)) {
+			write(settings, out);
+		}
+	}
+}
@@ -2,17 +2,15 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.Locale;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 
 public class Part1 {
-	static HashMap<String, Node> masterMap;
-
 	static class Edge {
 		String beforePos;
 		Node node;
@@ -29,26 +27,29 @@ public class Part1 {
 		public double getProbability() { return this.probability; }
 	}
 	static class Node {
+		private static final ArrayList<Edge> NO_EDGES = new ArrayList<Edge>();
+
 		String word;
 		HashMap<String, ArrayList<Edge>> posMap;
 		
-		public Node(String word, ArrayList<String> sentenceSpec) {
+		public Node(String word) {
 			this.word = word;
 			this.posMap = new HashMap<String, ArrayList<Edge>>();
-			
-			for (String pos : sentenceSpec) {
-				posMap.put(pos, new ArrayList<Edge>());
-			}			
 		}
 		
 		public String getWord() { return this.word; }
 		public ArrayList<Edge> getEdges(String pos) {
-			return posMap.get(pos);
+			ArrayList<Edge> edges = posMap.get(pos);
+			return edges != null ? edges : NO_EDGES;
 		}
 
-		public void addEdge(String pos1, String pos2, Node node, double probability) {
-			Edge edge = new Edge(pos1, node, probability);
-			posMap.get(pos2).add(edge);
+		void addEdge(String pos1, String pos2, Node node, double probability) {
+			ArrayList<Edge> edges = posMap.get(pos2);
+			if (edges == null) {
+				edges = new ArrayList<Edge>();
+				posMap.put(pos2, edges);
+			}
+			edges.add(new Edge(pos1, node, probability));
 		}
 
 		// For debugging purposes
@@ -80,105 +81,163 @@ public class Part1 {
 		public double getProbability() { return this.probability; }
 
 	}
+	/*
+	 * Persistent sequence: each sequence points at the one it extends and only stores its last
+	 * word, so extending is O(1) and siblings share their prefix. The log-probability and size
+	 * are cached as the sequence is built; scoring in log space keeps long sentences from
+	 * underflowing to 0.
+	 */
 	static class Sequence {
-		ArrayList<Word> words;
+		Sequence parent;
+		Word word;
+		int size;
+		double logProbability;
 
 		public Sequence() {
-			this.words = new ArrayList<Word>();
-		}
-		private Sequence(ArrayList<Word> words) {
-			this.words = new ArrayList<Word>(words);
 		}
-
-		public Sequence copy() {
-			return new Sequence(this.words);
+		private Sequence(Sequence parent, Word word) {
+			this.parent = parent;
+			this.word = word;
+			this.size = parent.size + 1;
+			this.logProbability = parent.logProbability + Math.log(word.getProbability());
 		}
 
 		public int size() {
-			return words.size();
+			return size;
 		}
 
 		public Word getLastWord() {
-			return words.get(words.size() - 1);
+			return word;
 		}
 
 		public String getSentence(){
-			ArrayList<String> texts = new ArrayList<String>();
-			for (Word word : words) {
-				texts.add(word.getText());
+			String[] texts = new String[size];
+			for (Sequence seq = this; seq.size > 0; seq = seq.parent) {
+				texts[seq.size - 1] = seq.word.getText();
 			}
 			return String.join(" ", texts);
 		}
 
+		// May underflow to 0 for long sentences, the log-probability does not
 		public double getTotalProbability() {
-			double probability = 1;
-			for (Word word : words) {
-				probability *= word.getProbability();
-			}
-			return probability;
+			return Math.exp(logProbability);
 		}
 
-		public boolean addWord(String word, String pos, double probability, ArrayList<String> sentenceSpec) {
-			if (words.size() < sentenceSpec.size() && sentenceSpec.get(words.size()).equals(pos)) {
-				this.words.add(new Word(word, pos, probability));
-				return true;
+		public double getLogProbability() {
+			return logProbability;
+		}
+
+		// Returns the extended sequence, or null if pos is not the next tag in the spec
+		public Sequence addWord(String word, String pos, double probability, ArrayList<String> sentenceSpec) {
+			return addWord(new Word(word, pos, probability), sentenceSpec);
+		}
+		
+		public Sequence addWord(Word word, ArrayList<String> sentenceSpec) {
+			if (size < sentenceSpec.size() && sentenceSpec.get(size).equals(word.getPos())) {
+				return new Sequence(this, word);
 			}
-			return false;
+			return null;
 		}
 	}
 	
-	private static Node getNodeFromMaster(String word, ArrayList<String> sentenceSpec) {
+	/*
+	 * Word graph parsed from input.txt. Every bigram is kept regardless of its tags, so one
+	 * graph can serve any sentenceSpec; it is not modified after load().
+	 */
+	static class Graph {
+		private final HashMap<String, Node> nodes;
+
+		private Graph(HashMap<String, Node> nodes) {
+			this.nodes = nodes;
+		}
+
+		public Node getNode(String word) {
+			Node node = nodes.get(word);
+			return node != null ? node : new Node(word);
+		}
+
+		public int size() {
+			return nodes.size();
+		}
+	}
+
+	private static Node getNodeFromMaster(HashMap<String, Node> masterMap, String word) {
 		if (masterMap.get(word) == null) {
-			Node newNode = new Node(word, sentenceSpec);
+			Node newNode = new Node(word);
 			masterMap.put(word, newNode);
 			return newNode;			
 		} 
 		else { return masterMap.get(word); }
 	}
+
+	/*
+	 * graph - text of input.txt
+	 */
+	public static Graph load(String graph) {
+		HashMap<String, Node> masterMap = new HashMap<String, Node>();
+		// Parse input
+		for (String line : graph.split("\n")) {
+			String[] parts = line.split("//");
+			String[] firstTag = parts[0].split("/");
+			String[] secondTag = parts[1].split("/");
+			double probability = Double.parseDouble(parts[2]);
+			
+			Node n1 = getNodeFromMaster(masterMap, firstTag[0]);
+			Node n2 = getNodeFromMaster(masterMap, secondTag[0]);
+			n1.addEdge(firstTag[1], secondTag[1], n2, probability);
+		}
+		return new Graph(masterMap);
+	}
 	
-	public static String bfs(Node root, ArrayList<String> sentenceSpec) {
+	public static String bfs(Graph graph, Node root, ArrayList<String> sentenceSpec) {
 		ArrayList<Sequence> validSequences = new ArrayList<Sequence>();
 		int nodesConsidered = 0;
-		Sequence rootSeq = new Sequence();
-		rootSeq.addWord(root.getWord(), sentenceSpec.get(0), 1, sentenceSpec);
-		Queue queue = new LinkedList();
+		if (sentenceSpec.isEmpty()) {
+			return "No sentence found\nTotal nodes considered: " + nodesConsidered;
+		}
+		Sequence rootSeq = new Sequence().addWord(root.getWord(), sentenceSpec.get(0), 1, sentenceSpec);
+		Queue<Sequence> queue = new ArrayDeque<Sequence>();
 		queue.add(rootSeq);
 
 		while(!queue.isEmpty()) {
-			Sequence seq = (Sequence)queue.remove();
+			Sequence seq = queue.remove();
 			if (seq.size() == sentenceSpec.size()) {
 				validSequences.add(seq);
 				continue;
 			}
 
 			Word word = seq.getLastWord();
-			Node node = masterMap.get(word.getText());
+			Node node = graph.getNode(word.getText());
 			String nextPos = sentenceSpec.get(seq.size());
 			for (Edge edge : node.getEdges(nextPos)) {
 				nodesConsidered++;
 				if (edge.getBeforePos().equals(word.getPos())) {
-					Sequence newSeq = seq.copy();
 					Node nextNode = edge.getNode();
-					if (newSeq.addWord(nextNode.getWord(), nextPos, edge.getProbability(), sentenceSpec)){
+					Sequence newSeq = seq.addWord(nextNode.getWord(), nextPos, edge.getProbability(), sentenceSpec);
+					if (newSeq != null) {
 						queue.add(newSeq);
 					}
 				}
 			}
 		}
 		
-		double maxProbability = 0;
+		double maxLogProbability = Double.NEGATIVE_INFINITY;
 		Sequence maxProbabilitySeq = null;
 		for (Sequence seq : validSequences){
-			if (seq.getTotalProbability() > maxProbability) {
-				maxProbability = seq.getTotalProbability();
+			if (seq.getLogProbability() > maxLogProbability) {
+				maxLogProbability = seq.getLogProbability();
 				maxProbabilitySeq = seq;
 			}
 		}
+		if (maxProbabilitySeq == null) {
+			return "No sentence found\nTotal nodes considered: " + nodesConsidered;
+		}
 
 		DecimalFormat df = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
 		df.setMaximumFractionDigits(340);
 
-		return "\"" + maxProbabilitySeq.getSentence() + "\" with probability " + df.format(maxProbability) + "\nTotal nodes considered: " + nodesConsidered;
+		return "\"" + maxProbabilitySeq.getSentence() + "\" with probability " + df.format(maxProbabilitySeq.getTotalProbability())
+				+ " (log probability " + maxLogProbability + ")\nTotal nodes considered: " + nodesConsidered;
 	}
 	
 	/*
@@ -187,30 +246,22 @@ public class Part1 {
 	 * graph - text of input.txt
 	 */
 	public static String generate(String startingWord, ArrayList<String> sentenceSpec, String graph) {
-		masterMap = new HashMap<String, Node>();
-		// Parse input
-		for (String line : graph.split("\n")) {
-			String[] parts = line.split("//");
-			String[] firstTag = parts[0].split("/");
-			String[] secondTag = parts[1].split("/");
-			double probability = Double.parseDouble(parts[2]);
-			
-			Node n1 = getNodeFromMaster(firstTag[0], sentenceSpec);
-			Node n2 = getNodeFromMaster(secondTag[0], sentenceSpec);
-			String pos1 = firstTag[1];
-			String pos2 = secondTag[1];
-			
-			if (sentenceSpec.contains(pos1) && sentenceSpec.contains(pos2)) {
-				n1.addEdge(pos1, pos2, n2, probability);
-			}
-		}
-		return bfs(getNodeFromMaster(startingWord, sentenceSpec), sentenceSpec);
+		return generate(load(graph), startingWord, sentenceSpec);
+	}
+
+	/*
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 */
+	public static String generate(Graph graph, String startingWord, ArrayList<String> sentenceSpec) {
+		return bfs(graph, graph.getNode(startingWord), sentenceSpec);
 	}
 	
 	public static void main(String[] args) {
 		try {
 			byte[] encoded = Files.readAllBytes(Paths.get("input.txt"));
-			String graph = new String(encoded, StandardCharsets.UTF_8);
+			Graph graph = load(new String(encoded, StandardCharsets.UTF_8));
 			
 			String startingWord = "hans";
 			ArrayList<String> sentenceSpec = new ArrayList<String>() {{
@@ -219,10 +270,10 @@ public class Part1 {
 				add("DT");
 				add("NN");
 			}};
-			System.out.println(generate(startingWord, sentenceSpec, graph));
+			System.out.println(generate(graph, startingWord, sentenceSpec));
 
 			startingWord = "benjamin";
-			System.out.println(generate(startingWord, sentenceSpec, graph));
+			System.out.println(generate(graph, startingWord, sentenceSpec));
 
 			startingWord = "a";
 			sentenceSpec = new ArrayList<String>() {{
@@ -231,7 +282,7 @@ public class Part1 {
 				add("VBD");
 				add("NNP");
 			}};
-			System.out.println(generate(startingWord, sentenceSpec, graph));
+			System.out.println(generate(graph, startingWord, sentenceSpec));
 
 			startingWord = "benjamin";
 			sentenceSpec = new ArrayList<String>() {{
@@ -241,7 +292,7 @@ public class Part1 {
 				add("JJS");
 				add("NN");
 			}};
-			System.out.println(generate(startingWord, sentenceSpec, graph));
+			System.out.println(generate(graph, startingWord, sentenceSpec));
 
 			startingWord = "a";
 			sentenceSpec = new ArrayList<String>() {{
@@ -253,7 +304,7 @@ public class Part1 {
 				add("DT");
 				add("NN");
 			}};
-			System.out.println(generate(startingWord, sentenceSpec, graph));
+			System.out.println(generate(graph, startingWord, sentenceSpec));
 			
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
@@ -1,391 +1,3320 @@
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.SplittableRandom;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Predicate;
 
 import java.util.Locale;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
 public class Part3 {
-	static HashMap<String, Node> masterMap;
+	static class Candidate implements Comparable<Candidate> {
+		Sequence sequence;
+		double estimate;
+		long order;
+
+		public Candidate(Sequence sequence, double estimate, long order) {
+			this.sequence = sequence;
+			this.estimate = estimate;
+			this.order = order;
+		}
+
+		public Sequence getSequence() { return this.sequence; }
+		public double getEstimate() { return this.estimate; }
+
+		// Highest estimate first, ties in the order they were pushed
+		public int compareTo(Candidate other) {
+			int cmp = Double.compare(other.estimate, this.estimate);
+			return cmp != 0 ? cmp : Long.compare(this.order, other.order);
+		}
+	}
+	/*
+	 * Persistent sequence: each sequence points at the one it extends and only stores the id of
+	 * its last word, so extending is O(1) and siblings share their prefix. The log-probability and
+	 * size are cached as the sequence is built, and scores are compared in log space so that long
+	 * sequences do not underflow to 0. The tag of each word is the
+	 * sentenceSpec tag at its position.
+	 */
+	static class Sequence {
+		Sequence parent;
+		int word;
+		int size;
+		double logProbability;
+
+		public Sequence(int word) {
+			this.word = word;
+			this.size = 1;
+		}
+		private Sequence(Sequence parent, int word, double logProbability) {
+			this.parent = parent;
+			this.word = word;
+			this.size = parent.size + 1;
+			this.logProbability = parent.logProbability + logProbability;
+		}
+
+		public int size() {
+			return size;
+		}
+
+		public int getLastWord() {
+			return word;
+		}
+
+		public ArrayList<String> getWords(Graph graph) {
+			String[] texts = new String[size];
+			for (Sequence seq = this; seq != null; seq = seq.parent) {
+				texts[seq.size - 1] = graph.getWord(seq.word);
+			}
+			return new ArrayList<String>(Arrays.asList(texts));
+		}
+
+		public String getSentence(Graph graph){
+			return String.join(" ", getWords(graph));
+		}
+
+		public Result toResult(Graph graph, Spec spec, SearchStats stats) {
+			return new Result(getWords(graph), new ArrayList<String>(spec.getSentenceSpec()), logProbability, stats);
+		}
+
+		public double getTotalProbability() {
+			return Math.exp(logProbability);
+		}
+
+		public double getLogProbability() {
+			return logProbability;
+		}
+
+		public Sequence addWord(int word, double logProbability) {
+			return new Sequence(this, word, logProbability);
+		}
+	}
+	
+	/*
+	 * Outcome of one search: the sentence and the tag of each word, its score and the stats of the
+	 * search. When no sentence matches, words and tags are empty and the log-probability is
+	 * -Infinity. format() turns it into the text generate() returns.
+	 */
+	static class Result {
+		ArrayList<String> words;
+		ArrayList<String> tags;
+		double logProbability;
+		SearchStats stats;
+
+		public Result(ArrayList<String> words, ArrayList<String> tags, double logProbability, SearchStats stats) {
+			this.words = words;
+			this.tags = tags;
+			this.logProbability = logProbability;
+			this.stats = stats;
+		}
+
+		static Result notFound(SearchStats stats) {
+			return new Result(new ArrayList<String>(), new ArrayList<String>(), Double.NEGATIVE_INFINITY, stats);
+		}
+
+		public boolean isFound() { return !words.isEmpty(); }
+		public ArrayList<String> getWords() { return this.words; }
+		public ArrayList<String> getTags() { return this.tags; }
+		public String getSentence() { return String.join(" ", words); }
+		// May underflow to 0 for long sentences, the log-probability does not
+		public double getProbability() { return Math.exp(this.logProbability); }
+		public double getLogProbability() { return this.logProbability; }
+		// null for results that are not from a single search, i.e. generateBatch()
+		public SearchStats getStats() { return this.stats; }
+	}
+	
+	/*
+	 * Per-request search settings; the defaults are used when generate() is called without one.
+	 */
+	static class SearchOptions {
+		int beamWidth = 10;
+		String endWord;
+		double probabilityFloor = 0;
+		int maxBranching = Integer.MAX_VALUE;
+		double[] probabilityFloors; // by position, null to use probabilityFloor everywhere
+		int[] maxBranchings; // by position, null to use maxBranching everywhere
+		long seed = 0;
+
+		public int getBeamWidth() { return this.beamWidth; }
+		// null when the last word is not fixed
+		public String getEndWord() { return this.endWord; }
+
+		// Fixes the last word of the sentence. The exact strategies are then served by bidirectional(),
+		// which does not prune, SAMPLE only draws sentences ending with it, and BEAM rejects it.
+		public SearchOptions setEndWord(String endWord) {
+			this.endWord = endWord;
+			return this;
+		}
+
+		public long getSeed() { return this.seed; }
+
+		// Seed of SAMPLE; the same seed draws the same sentence
+		public SearchOptions setSeed(long seed) {
+			this.seed = seed;
+			return this;
+		}
+
+		public double getProbabilityFloor() { return this.probabilityFloor; }
+		public int getMaxBranching() { return this.maxBranching; }
+		public double[] getProbabilityFloors() { return this.probabilityFloors; }
+		public int[] getMaxBranchings() { return this.maxBranchings; }
+
+		// Floor for the edges out of the word at position; positions past probabilityFloors use probabilityFloor
+		public double getProbabilityFloor(int position) {
+			return probabilityFloors != null && position < probabilityFloors.length ? probabilityFloors[position] : probabilityFloor;
+		}
+
+		// Cap for the edges out of the word at position; positions past maxBranchings use maxBranching
+		public int getMaxBranching(int position) {
+			return maxBranchings != null && position < maxBranchings.length ? maxBranchings[position] : maxBranching;
+		}
+
+		// BREADTH_FIRST, DEPTH_FIRST and HEURISTIC skip edges less probable than this, at positions
+		// setProbabilityFloors() does not cover
+		public SearchOptions setProbabilityFloor(double probabilityFloor) {
+			if (!(probabilityFloor >= 0 && probabilityFloor <= 1)) {
+				throw new IllegalArgumentException("probability floor must be in [0, 1]: " + probabilityFloor);
+			}
+			this.probabilityFloor = probabilityFloor;
+			return this;
+		}
+
+		// BREADTH_FIRST, DEPTH_FIRST and HEURISTIC only follow the maxBranching most probable edges of a word,
+		// at positions setMaxBranchings() does not cover
+		public SearchOptions setMaxBranching(int maxBranching) {
+			if (maxBranching < 1) {
+				throw new IllegalArgumentException("max branching must be at least 1: " + maxBranching);
+			}
+			this.maxBranching = maxBranching;
+			return this;
+		}
+
+		// Per-position setProbabilityFloor(): probabilityFloors[i] applies to the edges out of the word at position i
+		public SearchOptions setProbabilityFloors(double... probabilityFloors) {
+			for (double floor : probabilityFloors) {
+				if (!(floor >= 0 && floor <= 1)) {
+					throw new IllegalArgumentException("probability floor must be in [0, 1]: " + floor);
+				}
+			}
+			this.probabilityFloors = probabilityFloors.clone();
+			return this;
+		}
+
+		// Per-position setMaxBranching(): maxBranchings[i] applies to the edges out of the word at position i
+		public SearchOptions setMaxBranchings(int... maxBranchings) {
+			for (int branching : maxBranchings) {
+				if (branching < 1) {
+					throw new IllegalArgumentException("max branching must be at least 1: " + branching);
+				}
+			}
+			this.maxBranchings = maxBranchings.clone();
+			return this;
+		}
+
+		public SearchOptions setBeamWidth(int beamWidth) {
+			if (beamWidth < 1) {
+				throw new IllegalArgumentException("beam width must be at least 1: " + beamWidth);
+			}
+			this.beamWidth = beamWidth;
+			return this;
+		}
+	}
+	
+	/*
+	 * Counters for one query. edgesExamined is what "Total nodes considered" reports. A node is
+	 * expanded when its out-edges are read, and peakFrontier is the most sequences the strategy
+	 * held at once (queue, stack, heap or layer). resolveNanos covers resolving the starting word and
+	 * sentenceSpec to ids in the already loaded graph, searchNanos the search itself; loading the
+	 * graph is not part of any query.
+	 */
+	static class SearchStats {
+		long edgesExamined;
+		long nodesExpanded;
+		long peakFrontier;
+		long sequencesAllocated;
+		long prunedBranches;
+		long floorPruned;
+		long degreePruned;
+		long resolveNanos;
+		long searchNanos;
+
+		public long getEdgesExamined() { return this.edgesExamined; }
+		public long getNodesExpanded() { return this.nodesExpanded; }
+		public long getPeakFrontier() { return this.peakFrontier; }
+		public long getSequencesAllocated() { return this.sequencesAllocated; }
+		public long getPrunedBranches() { return this.prunedBranches; }
+		// Edges cut by SearchOptions probabilityFloor and maxBranching; both are part of prunedBranches
+		public long getFloorPruned() { return this.floorPruned; }
+		public long getDegreePruned() { return this.degreePruned; }
+		public long getResolveNanos() { return this.resolveNanos; }
+		public long getSearchNanos() { return this.searchNanos; }
+
+		void frontier(long size) {
+			if (size > peakFrontier) {
+				peakFrontier = size;
+			}
+		}
+
+		// Adds the counters of a part of the same search; frontiers are not summed
+		void add(SearchStats other) {
+			edgesExamined += other.edgesExamined;
+			nodesExpanded += other.nodesExpanded;
+			frontier(other.peakFrontier);
+			sequencesAllocated += other.sequencesAllocated;
+			prunedBranches += other.prunedBranches;
+			floorPruned += other.floorPruned;
+			degreePruned += other.degreePruned;
+		}
+
+		public String toString() {
+			return "edges examined " + edgesExamined + ", nodes expanded " + nodesExpanded + ", peak frontier " + peakFrontier
+					+ ", sequences allocated " + sequencesAllocated + ", pruned branches " + prunedBranches
+					+ " (" + floorPruned + " by floor, " + degreePruned + " by branching)"
+					+ ", resolve " + resolveNanos / 1000 + " us, search " + searchNanos / 1000 + " us";
+		}
+	}
+
+	/*
+	 * Two-way mapping between strings (words or tags) and dense ids
+	 */
+	interface Vocabulary {
+		int size();
+		String get(int id);
+		// -1 if the string is not in the vocabulary
+		int getId(String value);
+	}
+
+	static class HashVocabulary implements Vocabulary {
+		private final String[] values;
+		private final HashMap<String, Integer> ids;
+
+		public HashVocabulary(String[] values) {
+			this.values = values;
+			this.ids = new HashMap<String, Integer>();
+			for (int id = 0; id < values.length; id++) {
+				ids.put(values[id], id);
+			}
+		}
+
+		public int size() { return values.length; }
+		public String get(int id) { return values[id]; }
+
+		public int getId(String value) {
+			Integer id = ids.get(value);
+			return id != null ? id : -1;
+		}
+	}
+
+	/*
+	 * Word graph compiled to flat int/double buffers. Words and tags are interned to ids, and the
+	 * out-edges of every word are grouped into buckets by (pos1, pos2) tag pair:
+	 *
+	 * bucketStart[w] .. bucketStart[w + 1] - 1 - buckets of word w, sorted by key
+	 * bucketKeys[b] - pos1 * tagCount + pos2
+	 * edgeStart[b] .. edgeStart[b + 1] - 1 - edges of bucket b, most probable first
+	 * edgeTargets[e], edgeLogProbabilities[e] - target word and log-probability of edge e
+	 * maxLogProbabilities[pos1 * tagCount + pos2] - best edge of each tag pair
+	 *
+	 * The buffers either wrap heap arrays (GraphBuilder) or views of a memory-mapped snapshot
+	 * (Snapshot). Every bigram is kept regardless of its tags, so one graph can serve any
+	 * sentenceSpec; it is never modified once built. GraphDelta.applyTo() makes an updated copy.
+	 * The reverse index and alias tables are only built the first time they are asked for.
+	 */
+	static class Graph {
+		private final Vocabulary words;
+		private final Vocabulary tags;
+		private final int tagCount;
+		private final IntBuffer bucketStart;
+		private final IntBuffer bucketKeys;
+		private final IntBuffer edgeStart;
+		private final IntBuffer edgeTargets;
+		private final DoubleBuffer edgeLogProbabilities;
+		private final DoubleBuffer maxLogProbabilities;
+		private volatile ReverseIndex reverseIndex;
+		private volatile AliasTables aliasTables;
+
+		Graph(Vocabulary words, Vocabulary tags, IntBuffer bucketStart, IntBuffer bucketKeys, IntBuffer edgeStart,
+				IntBuffer edgeTargets, DoubleBuffer edgeLogProbabilities, DoubleBuffer maxLogProbabilities) {
+			this.words = words;
+			this.tags = tags;
+			this.tagCount = tags.size();
+			this.bucketStart = bucketStart;
+			this.bucketKeys = bucketKeys;
+			this.edgeStart = edgeStart;
+			this.edgeTargets = edgeTargets;
+			this.edgeLogProbabilities = edgeLogProbabilities;
+			this.maxLogProbabilities = maxLogProbabilities;
+		}
+
+		public int size() { return words.size(); }
+		public int getTagCount() { return tagCount; }
+		public int getBucketCount() { return bucketKeys.limit(); }
+		public int getEdgeCount() { return edgeTargets.limit(); }
+		public String getWord(int word) { return words.get(word); }
+		public String getTag(int pos) { return tags.get(pos); }
+		public Vocabulary getWords() { return this.words; }
+		public Vocabulary getTags() { return this.tags; }
+		public int getBucketStart(int word) { return bucketStart.get(word); }
+		public int getBucketKey(int bucket) { return bucketKeys.get(bucket); }
+
+		// -1 if the word is not in the graph
+		public int getWordId(String word) {
+			return words.getId(word);
+		}
+
+		// -1 if the tag is not in the graph
+		public int getTagId(String pos) {
+			return tags.getId(pos);
+		}
+
+		// Key of the pos1 -> pos2 tag pair, -1 if either tag is not in the graph
+		public int getPairKey(int pos1, int pos2) {
+			return pos1 < 0 || pos2 < 0 ? -1 : pos1 * tagCount + pos2;
+		}
+
+		// Bucket holding the pos1 -> pos2 edges of word, -1 if it has none
+		public int getBucket(int word, int pos1, int pos2) {
+			return getBucket(word, getPairKey(pos1, pos2));
+		}
+
+		// Bucket holding the edges of word for the tag pair key, -1 if it has none
+		public int getBucket(int word, int key) {
+			if (word < 0 || key < 0) {
+				return -1;
+			}
+			int low = bucketStart.get(word);
+			int high = bucketStart.get(word + 1) - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int midKey = bucketKeys.get(mid);
+				if (midKey < key) {
+					low = mid + 1;
+				}
+				else if (midKey > key) {
+					high = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		public int getEdgeStart(int bucket) { return bucket < 0 ? 0 : edgeStart.get(bucket); }
+		public int getEdgeEnd(int bucket) { return bucket < 0 ? 0 : edgeStart.get(bucket + 1); }
+		public int getTarget(int edge) { return edgeTargets.get(edge); }
+		public double getLogProbability(int edge) { return edgeLogProbabilities.get(edge); }
+		public double getProbability(int edge) { return Math.exp(edgeLogProbabilities.get(edge)); }
+
+		// Highest log-probability of any edge with the tag pair key, -Infinity if there is none
+		public double getMaxLogProbability(int key) {
+			return key < 0 ? Double.NEGATIVE_INFINITY : maxLogProbabilities.get(key);
+		}
+
+		public double getMaxLogProbability(int pos1, int pos2) {
+			return getMaxLogProbability(getPairKey(pos1, pos2));
+		}
+
+		public ReverseIndex getReverseIndex() {
+			ReverseIndex index = reverseIndex;
+			if (index == null) {
+				synchronized (this) {
+					index = reverseIndex;
+					if (index == null) {
+						index = new ReverseIndex(this);
+						reverseIndex = index;
+					}
+				}
+			}
+			return index;
+		}
+
+		public AliasTables getAliasTables() {
+			AliasTables tables = aliasTables;
+			if (tables == null) {
+				synchronized (this) {
+					tables = aliasTables;
+					if (tables == null) {
+						tables = new AliasTables(this);
+						aliasTables = tables;
+					}
+				}
+			}
+			return tables;
+		}
+	}
+
+	/*
+	 * In-edges of every word, grouped by tag pair the same way Graph groups out-edges:
+	 *
+	 * bucketStart[w] .. bucketStart[w + 1] - 1 - in-edge buckets of word w, sorted by key
+	 * bucketKeys[b] - pos1 * tagCount + pos2 of the edges
+	 * edgeStart[b] .. edgeStart[b + 1] - 1 - in-edges of bucket b
+	 * sources[i], edges[i] - the word in-edge i leaves, and its id in the graph
+	 */
+	static class ReverseIndex {
+		private final int[] bucketStart;
+		private final int[] bucketKeys;
+		private final int[] edgeStart;
+		private final int[] sources;
+		private final int[] edges;
+
+		public ReverseIndex(Graph graph) {
+			int edgeCount = graph.getEdgeCount();
+			int[] edgeSources = new int[edgeCount];
+			int[] keys = new int[edgeCount];
+			int[] targets = new int[edgeCount];
+			for (int w = 0; w < graph.size(); w++) {
+				for (int b = graph.getBucketStart(w); b < graph.getBucketStart(w + 1); b++) {
+					for (int e = graph.getEdgeStart(b); e < graph.getEdgeEnd(b); e++) {
+						edgeSources[e] = w;
+						keys[e] = graph.getBucketKey(b);
+						targets[e] = graph.getTarget(e);
+					}
+				}
+			}
+			int tagCount = graph.getTagCount();
+			int[] order = GraphBuilder.countingSort(targets, graph.size(),
+					GraphBuilder.countingSort(keys, tagCount * tagCount, GraphBuilder.identity(edgeCount)));
+
+			bucketStart = new int[graph.size() + 1];
+			int[] allKeys = new int[edgeCount];
+			int[] allStarts = new int[edgeCount + 1];
+			sources = new int[edgeCount];
+			edges = new int[edgeCount];
+			int buckets = 0;
+			int word = 0;
+			for (int i = 0; i < edgeCount; i++) {
+				int e = order[i];
+				while (word <= targets[e]) {
+					bucketStart[word++] = buckets;
+				}
+				if (i == 0 || targets[order[i - 1]] != targets[e] || keys[order[i - 1]] != keys[e]) {
+					allKeys[buckets] = keys[e];
+					allStarts[buckets] = i;
+					buckets++;
+				}
+				sources[i] = edgeSources[e];
+				edges[i] = e;
+			}
+			while (word <= graph.size()) {
+				bucketStart[word++] = buckets;
+			}
+			allStarts[buckets] = edgeCount;
+			bucketKeys = Arrays.copyOf(allKeys, buckets);
+			edgeStart = Arrays.copyOf(allStarts, buckets + 1);
+		}
+
+		// Bucket holding the in-edges of word for the tag pair key, -1 if it has none
+		public int getBucket(int word, int key) {
+			if (word < 0 || key < 0) {
+				return -1;
+			}
+			int low = bucketStart[word];
+			int high = bucketStart[word + 1] - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				if (bucketKeys[mid] < key) {
+					low = mid + 1;
+				}
+				else if (bucketKeys[mid] > key) {
+					high = mid - 1;
+				}
+				else {
+					return mid;
+				}
+			}
+			return -1;
+		}
+
+		public int getBucketStart(int word) { return bucketStart[word]; }
+		public int getEdgeStart(int bucket) { return bucket < 0 ? 0 : edgeStart[bucket]; }
+		public int getEdgeEnd(int bucket) { return bucket < 0 ? 0 : edgeStart[bucket + 1]; }
+		public int getSource(int i) { return sources[i]; }
+		public int getEdge(int i) { return edges[i]; }
+	}
+
+	/*
+	 * Alias tables (Vose) over the edges of every bucket, so an edge can be drawn in proportion to
+	 * its probability in O(1): pick edge i of the bucket uniformly, then keep it with probability
+	 * threshold[i] or take alias[i] instead. Arrays are indexed like the graph's edges.
+	 */
+	static class AliasTables {
+		private final double[] threshold;
+		private final int[] alias;
+
+		public AliasTables(Graph graph) {
+			threshold = new double[graph.getEdgeCount()];
+			alias = new int[graph.getEdgeCount()];
+			int maxSize = 0;
+			for (int b = 0; b < graph.getBucketCount(); b++) {
+				maxSize = Math.max(maxSize, graph.getEdgeEnd(b) - graph.getEdgeStart(b));
+			}
+			double[] scaled = new double[maxSize];
+			int[] small = new int[maxSize];
+			int[] large = new int[maxSize];
+
+			for (int b = 0; b < graph.getBucketCount(); b++) {
+				int start = graph.getEdgeStart(b);
+				int size = graph.getEdgeEnd(b) - start;
+				double total = 0;
+				for (int i = 0; i < size; i++) {
+					total += graph.getProbability(start + i);
+				}
+				int smallCount = 0;
+				int largeCount = 0;
+				for (int i = 0; i < size; i++) {
+					scaled[i] = graph.getProbability(start + i) * size / total;
+					if (scaled[i] < 1) {
+						small[smallCount++] = i;
+					}
+					else {
+						large[largeCount++] = i;
+					}
+				}
+				while (smallCount > 0 && largeCount > 0) {
+					int less = small[--smallCount];
+					int more = large[--largeCount];
+					threshold[start + less] = scaled[less];
+					alias[start + less] = start + more;
+					scaled[more] = scaled[more] + scaled[less] - 1;
+					if (scaled[more] < 1) {
+						small[smallCount++] = more;
+					}
+					else {
+						large[largeCount++] = more;
+					}
+				}
+				// Whatever is left is 1 up to rounding
+				while (largeCount > 0) {
+					int i = large[--largeCount];
+					threshold[start + i] = 1;
+					alias[start + i] = start + i;
+				}
+				while (smallCount > 0) {
+					int i = small[--smallCount];
+					threshold[start + i] = 1;
+					alias[start + i] = start + i;
+				}
+			}
+		}
+
+		// An edge of the non-empty bucket from start to end - 1, in proportion to its probability
+		public int draw(int start, int end, SplittableRandom random) {
+			int i = start + random.nextInt(end - start);
+			return random.nextDouble() < threshold[i] ? i : alias[i];
+		}
+	}
+
+	/*
+	 * Draws sentences matching one spec from a starting word, and ending with endWord unless it
+	 * is -1, with probability proportional to the product of their edge probabilities.
+	 *
+	 * getMass(i, w) is the total probability of every way to finish the spec from word w at
+	 * position i, computed backward over the reverse index from the last position, where it is 1
+	 * for every word (only for endWord if one is fixed). Each position is rescaled so its largest
+	 * mass is 1, since only ratios within a position are used and long specs would otherwise
+	 * underflow. maxTargetMass is the largest mass among the targets of a word's edges into the
+	 * next position. As in SuffixTable, only the words the pass reaches are stored, by their slot
+	 * in words[i].
+	 *
+	 * A step draws an edge from the bucket's alias table and accepts it with probability
+	 * mass(target) / maxTargetMass, which gives edges in proportion to probability * mass, so a
+	 * sentence never runs into a dead end. After MAX_REJECTIONS misses in a row the step scans the
+	 * bucket and draws exactly instead. A sampler does not change once built, so threads can share
+	 * one; each draw brings its own random.
+	 *
+	 * Only word ids are stored, no edge ids, so a sampler holds no reference to the graph it was
+	 * built on and serves any later graph whose edges for the spec's tag pairs are the same.
+	 */
+	static class Sampler implements CachedTable {
+		private static final int MAX_REJECTIONS = 32;
+
+		final ArrayList<String> sentenceSpec;
+		final WordIndex[] words; // null at the last position when every word can end the sentence
+		final double[][] mass;
+		final double[][] maxTargetMass;
+
+		public Sampler(Graph graph, Spec spec, int endWord) {
+			this.sentenceSpec = new ArrayList<String>(spec.getSentenceSpec());
+			int n = spec.length();
+			this.words = new WordIndex[n];
+			this.mass = new double[n][];
+			this.maxTargetMass = new double[n][];
+
+			// Dense mass of the position just finished and of the one being summed, 0 for words not reached
+			double[] nextMass = new double[graph.size()];
+			double[] sum = new double[graph.size()];
+			double[] largestTarget = new double[graph.size()];
+			int[] active;
+			int activeCount;
+			if (endWord < 0) {
+				active = GraphBuilder.identity(graph.size());
+				activeCount = active.length;
+				Arrays.fill(nextMass, 1);
+			}
+			else {
+				active = new int[graph.size()];
+				active[0] = endWord;
+				activeCount = 1;
+				nextMass[endWord] = 1;
+				words[n - 1] = new WordIndex(active, 1);
+				mass[n - 1] = new double[] { 1 };
+			}
+			int[] reached = new int[graph.size()];
+
+			ReverseIndex reverse = graph.getReverseIndex();
+			for (int i = n - 1; i > 0; i--) {
+				int reachedCount = 0;
+				double largest = 0;
+				for (int k = 0; k < activeCount; k++) {
+					int word = active[k];
+					int bucket = reverse.getBucket(word, spec.pairKeys[i]);
+					for (int j = reverse.getEdgeStart(bucket); j < reverse.getEdgeEnd(bucket); j++) {
+						int source = reverse.getSource(j);
+						if (sum[source] == 0) {
+							reached[reachedCount++] = source;
+						}
+						sum[source] += graph.getProbability(reverse.getEdge(j)) * nextMass[word];
+						largestTarget[source] = Math.max(largestTarget[source], nextMass[word]);
+						largest = Math.max(largest, sum[source]);
+					}
+				}
+
+				for (int k = 0; k < activeCount; k++) {
+					nextMass[active[k]] = 0;
+				}
+				words[i - 1] = new WordIndex(reached, reachedCount);
+				mass[i - 1] = new double[reachedCount];
+				maxTargetMass[i - 1] = new double[reachedCount];
+				for (int k = 0; k < reachedCount; k++) {
+					int word = reached[k];
+					mass[i - 1][k] = sum[word] / largest;
+					maxTargetMass[i - 1][k] = largestTarget[word];
+					nextMass[word] = mass[i - 1][k];
+					sum[word] = 0;
+					largestTarget[word] = 0;
+				}
+				int[] buffer = active;
+				active = reached;
+				activeCount = reachedCount;
+				reached = buffer;
+			}
+		}
+
+		// Rescaled total probability of finishing the spec from word at position, 0 if it cannot be finished
+		public double getMass(int position, int word) {
+			if (words[position] == null) {
+				return 1;
+			}
+			int slot = words[position].getSlot(word);
+			return slot < 0 ? 0 : mass[position][slot];
+		}
+
+		public ArrayList<String> getSentenceSpec() { return this.sentenceSpec; }
+
+		public long getBytes() {
+			long bytes = 0;
+			for (int i = 0; i < words.length; i++) {
+				if (words[i] != null) {
+					bytes += words[i].getBytes() + 8L * mass[i].length + (maxTargetMass[i] != null ? 8L * maxTargetMass[i].length : 0);
+				}
+			}
+			return bytes;
+		}
+
+		// A sentence starting with root, null if the spec cannot be finished from it. graph and spec
+		// are the ones the sampler was built for, or ones with the same edges for the spec's tag pairs
+		public Sequence sample(Graph graph, Spec spec, int root, SplittableRandom random, SearchStats stats) {
+			if (getMass(0, root) == 0) {
+				return null;
+			}
+			AliasTables aliases = graph.getAliasTables();
+			Sequence seq = new Sequence(root);
+			stats.sequencesAllocated++;
+			for (int i = 1; i < spec.length(); i++) {
+				stats.nodesExpanded++;
+				int word = seq.getLastWord();
+				double largest = maxTargetMass[i - 1][words[i - 1].getSlot(word)];
+				int bucket = spec.getBucket(word, i);
+				int start = graph.getEdgeStart(bucket);
+				int end = graph.getEdgeEnd(bucket);
+				int e = -1;
+				for (int attempt = 0; attempt < MAX_REJECTIONS && e < 0; attempt++) {
+					int candidate = aliases.draw(start, end, random);
+					stats.edgesExamined++;
+					if (random.nextDouble() * largest < getMass(i, graph.getTarget(candidate))) {
+						e = candidate;
+					}
+					else {
+						stats.prunedBranches++;
+					}
+				}
+				if (e < 0) {
+					e = drawExactly(graph, start, end, i, random);
+				}
+				stats.sequencesAllocated++;
+				seq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+			}
+			return seq;
+		}
+
+		// An edge from start to end - 1 into position, in proportion to probability * mass, by a scan
+		private int drawExactly(Graph graph, int start, int end, int position, SplittableRandom random) {
+			double total = 0;
+			for (int e = start; e < end; e++) {
+				total += graph.getProbability(e) * getMass(position, graph.getTarget(e));
+			}
+			double target = random.nextDouble() * total;
+			int last = -1;
+			for (int e = start; e < end; e++) {
+				double weight = graph.getProbability(e) * getMass(position, graph.getTarget(e));
+				if (weight > 0) {
+					last = e;
+					target -= weight;
+					if (target < 0) {
+						return e;
+					}
+				}
+			}
+			return last;
+		}
+
+		// Sampler of spec and endWord from cache, built by the first query that needs it
+		static Sampler get(TableCache<Sampler> cache, final Graph graph, final Spec spec, final int endWord) {
+			List<Object> key = Arrays.<Object>asList(new ArrayList<String>(spec.getSentenceSpec()), endWord);
+			return cache.get(key, new Callable<Sampler>() {
+				public Sampler call() {
+					return new Sampler(graph, spec, endWord);
+				}
+			});
+		}
+	}
+
+	/*
+	 * A sentenceSpec resolved against one graph: the tag id at each position, and the key of the
+	 * tag pair slice every step reads, so searches never touch tag strings. Built per query; the
+	 * graph itself does not depend on any spec.
+	 */
+	static class Spec {
+		final Graph graph;
+		final ArrayList<String> sentenceSpec;
+		final int[] tags;
+		final int[] pairKeys; // pairKeys[i] - slice for the step from position i - 1 to i
+		private final int[][] suffixes;
+
+		public Spec(Graph graph, ArrayList<String> sentenceSpec) {
+			this.graph = graph;
+			this.sentenceSpec = sentenceSpec;
+			this.tags = new int[sentenceSpec.size()];
+			this.pairKeys = new int[sentenceSpec.size()];
+			for (int i = 0; i < tags.length; i++) {
+				tags[i] = graph.getTagId(sentenceSpec.get(i));
+				pairKeys[i] = i == 0 ? -1 : graph.getPairKey(tags[i - 1], tags[i]);
+			}
+			this.suffixes = new int[tags.length][];
+		}
+
+		public int length() { return tags.length; }
+		public int getTag(int position) { return tags[position]; }
+		public ArrayList<String> getSentenceSpec() { return this.sentenceSpec; }
+
+		// Tag ids from position to the end, shared by every caller
+		public int[] getSuffix(int position) {
+			if (suffixes[position] == null) {
+				suffixes[position] = Arrays.copyOfRange(tags, position, tags.length);
+			}
+			return suffixes[position];
+		}
+
+		// Bucket of word's edges into position, -1 if it has none
+		public int getBucket(int word, int position) {
+			return graph.getBucket(word, pairKeys[position]);
+		}
+
+		// Best edge into position anywhere in the graph
+		public double getMaxLogProbability(int position) {
+			return graph.getMaxLogProbability(pairKeys[position]);
+		}
+
+		// False if some tag is unknown or some step has no edge at all, so no sentence can match
+		public boolean isSatisfiable() {
+			if (tags.length == 0) {
+				return false;
+			}
+			for (int i = 0; i < tags.length; i++) {
+				if (tags[i] < 0 || (i > 0 && getMaxLogProbability(i) == Double.NEGATIVE_INFINITY)) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Assigns dense ids to strings. Strings are keyed by their UTF-8 bytes in an open-addressing
+	 * table, so interning a token straight out of a read buffer only allocates the first time the
+	 * token is seen.
+	 */
+	static class Interner {
+		private final ArrayList<String> values = new ArrayList<String>();
+		private byte[][] keys = new byte[16][];
+		private int[] hashes = new int[16];
+		private int[] table = new int[32]; // id + 1 of the string in each slot, 0 if empty
+
+		public int size() { return values.size(); }
+		public String get(int id) { return values.get(id); }
+
+		public int intern(String value) {
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			return intern(bytes, 0, bytes.length);
+		}
+
+		public int intern(byte[] bytes, int offset, int length) {
+			int hash = hash(bytes, offset, length);
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while (table[slot] != 0) {
+				int id = table[slot] - 1;
+				if (hashes[id] == hash && matches(keys[id], bytes, offset, length)) {
+					return id;
+				}
+				slot = (slot + 1) & mask;
+			}
+
+			int id = values.size();
+			if (id == keys.length) {
+				keys = Arrays.copyOf(keys, id * 2);
+				hashes = Arrays.copyOf(hashes, id * 2);
+			}
+			keys[id] = Arrays.copyOfRange(bytes, offset, offset + length);
+			hashes[id] = hash;
+			values.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+			table[slot] = id + 1;
+			if (values.size() * 2 > table.length) {
+				rehash(table.length * 2);
+			}
+			return id;
+		}
+
+		public Vocabulary toVocabulary() {
+			return new HashVocabulary(values.toArray(new String[0]));
+		}
+
+		private void rehash(int capacity) {
+			table = new int[capacity];
+			for (int id = 0; id < values.size(); id++) {
+				int slot = hashes[id] & (capacity - 1);
+				while (table[slot] != 0) {
+					slot = (slot + 1) & (capacity - 1);
+				}
+				table[slot] = id + 1;
+			}
+		}
+
+		private static int hash(byte[] bytes, int offset, int length) {
+			int hash = 0;
+			for (int i = offset; i < offset + length; i++) {
+				hash = 31 * hash + bytes[i];
+			}
+			return hash ^ (hash >>> 16);
+		}
+
+		private static boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+			if (key.length != length) {
+				return false;
+			}
+			for (int i = 0; i < length; i++) {
+				if (key[i] != bytes[offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	/*
+	 * Collects edges in parallel primitive arrays and compiles them into a Graph. build() sorts the
+	 * edges of each bucket by descending probability; equally probable edges keep the order they
+	 * were added in.
+	 */
+	static class GraphBuilder {
+		private final Interner words = new Interner();
+		private final Interner tags = new Interner();
+		private int[] sources = new int[1024];
+		private int[] pos1s = new int[1024];
+		private int[] pos2s = new int[1024];
+		private int[] targets = new int[1024];
+		private double[] probabilities = new double[1024];
+		private int edgeCount;
+
+		public Interner getWords() { return this.words; }
+		public Interner getTags() { return this.tags; }
+		public int getEdgeCount() { return this.edgeCount; }
+		public int getSource(int edge) { return sources[edge]; }
+		public int getPos1(int edge) { return pos1s[edge]; }
+		public int getTarget(int edge) { return targets[edge]; }
+		public int getPos2(int edge) { return pos2s[edge]; }
+		public double getProbability(int edge) { return probabilities[edge]; }
+
+		public void addEdge(String word1, String pos1, String word2, String pos2, double probability) {
+			addEdge(words.intern(word1), tags.intern(pos1), words.intern(word2), tags.intern(pos2), probability);
+		}
+
+		// Ids come from getWords() and getTags()
+		public void addEdge(int word1, int pos1, int word2, int pos2, double probability) {
+			if (edgeCount == sources.length) {
+				int capacity = edgeCount * 2;
+				sources = Arrays.copyOf(sources, capacity);
+				pos1s = Arrays.copyOf(pos1s, capacity);
+				pos2s = Arrays.copyOf(pos2s, capacity);
+				targets = Arrays.copyOf(targets, capacity);
+				probabilities = Arrays.copyOf(probabilities, capacity);
+			}
+			sources[edgeCount] = word1;
+			pos1s[edgeCount] = pos1;
+			targets[edgeCount] = word2;
+			pos2s[edgeCount] = pos2;
+			probabilities[edgeCount] = probability;
+			edgeCount++;
+		}
+
+		public Graph build() {
+			int tagCount = tags.size();
+			int[] keys = new int[edgeCount];
+			for (int e = 0; e < edgeCount; e++) {
+				keys[e] = pos1s[e] * tagCount + pos2s[e];
+			}
+			// Stable counting sorts by key, then by source, give (source, key) order
+			int[] byKey = countingSort(keys, tagCount * tagCount, identity(edgeCount));
+			int[] order = countingSort(sources, words.size(), byKey);
+
+			int[] bucketStart = new int[words.size() + 1];
+			int[] bucketKeys = new int[edgeCount];
+			int[] edgeStart = new int[edgeCount + 1];
+			int[] edgeTargets = new int[edgeCount];
+			double[] edgeLogProbabilities = new double[edgeCount];
+			int buckets = 0;
+			int word = 0;
+			for (int i = 0; i < edgeCount; i++) {
+				int e = order[i];
+				while (word <= sources[e]) {
+					bucketStart[word++] = buckets;
+				}
+				if (i == 0 || sources[order[i - 1]] != sources[e] || keys[order[i - 1]] != keys[e]) {
+					bucketKeys[buckets] = keys[e];
+					edgeStart[buckets] = i;
+					buckets++;
+				}
+				edgeTargets[i] = targets[e];
+				edgeLogProbabilities[i] = Math.log(probabilities[e]);
+			}
+			while (word <= words.size()) {
+				bucketStart[word++] = buckets;
+			}
+			edgeStart[buckets] = edgeCount;
+			for (int b = 0; b < buckets; b++) {
+				sortByProbability(edgeTargets, edgeLogProbabilities, edgeStart[b], edgeStart[b + 1]);
+			}
+
+			double[] maxLogProbabilities = new double[tagCount * tagCount];
+			Arrays.fill(maxLogProbabilities, Double.NEGATIVE_INFINITY);
+			for (int b = 0; b < buckets; b++) {
+				for (int i = edgeStart[b]; i < edgeStart[b + 1]; i++) {
+					maxLogProbabilities[bucketKeys[b]] = Math.max(maxLogProbabilities[bucketKeys[b]], edgeLogProbabilities[i]);
+				}
+			}
+
+			return new Graph(words.toVocabulary(), tags.toVocabulary(), IntBuffer.wrap(bucketStart),
+					IntBuffer.wrap(Arrays.copyOf(bucketKeys, buckets)), IntBuffer.wrap(Arrays.copyOf(edgeStart, buckets + 1)),
+					IntBuffer.wrap(edgeTargets), DoubleBuffer.wrap(edgeLogProbabilities), DoubleBuffer.wrap(maxLogProbabilities));
+		}
+
+		// Stable sort of the edges from .. to - 1 by descending log-probability
+		private static void sortByProbability(int[] targets, final double[] logProbabilities, int from, int to) {
+			if (to - from < 2) {
+				return;
+			}
+			Integer[] order = new Integer[to - from];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = from + i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return Double.compare(logProbabilities[b], logProbabilities[a]);
+				}
+			});
+			int[] sortedTargets = new int[order.length];
+			double[] sortedLogProbabilities = new double[order.length];
+			for (int i = 0; i < order.length; i++) {
+				sortedTargets[i] = targets[order[i]];
+				sortedLogProbabilities[i] = logProbabilities[order[i]];
+			}
+			System.arraycopy(sortedTargets, 0, targets, from, order.length);
+			System.arraycopy(sortedLogProbabilities, 0, logProbabilities, from, order.length);
+		}
+
+		static int[] identity(int n) {
+			int[] values = new int[n];
+			for (int i = 0; i < n; i++) {
+				values[i] = i;
+			}
+			return values;
+		}
+
+		// Stable sort of order by keys[order[i]], with keys in [0, range)
+		static int[] countingSort(int[] keys, int range, int[] order) {
+			int[] counts = new int[range + 1];
+			for (int e : order) {
+				counts[keys[e] + 1]++;
+			}
+			for (int k = 0; k < range; k++) {
+				counts[k + 1] += counts[k];
+			}
+			int[] sorted = new int[order.length];
+			for (int e : order) {
+				sorted[counts[keys[e]]++] = e;
+			}
+			return sorted;
+		}
+	}
+
+	/*
+	 * Binary form of a compiled Graph that can be memory-mapped and queried without parsing:
+	 *
+	 * header - MAGIC, VERSION, word, tag, bucket and edge counts, then the file offset and byte
+	 *          length of each section
+	 * sections - every Graph buffer as little-endian ints/doubles, plus the vocabularies as UTF-8
+	 *          strings back to back with an offset table. Word ids are also stored sorted by their
+	 *          bytes so a word can be looked up by binary search without building a hash map.
+	 *
+	 * Each section is mapped on its own, so no single mapping exceeds 2 GB. Mappings are
+	 * read-only, which lets processes on one host share the page cache copy.
+	 */
+	static class Snapshot {
+		static final int MAGIC = 0x50334752; // "P3GR"
+		static final int VERSION = 2; // 2 - edges sorted by probability within buckets
+
+		private static final int WORD_OFFSETS = 0;
+		private static final int WORD_SORTED = 1;
+		private static final int WORD_BYTES = 2;
+		private static final int TAG_OFFSETS = 3;
+		private static final int TAG_BYTES = 4;
+		private static final int BUCKET_START = 5;
+		private static final int BUCKET_KEYS = 6;
+		private static final int EDGE_START = 7;
+		private static final int EDGE_TARGETS = 8;
+		private static final int EDGE_LOG_PROBABILITIES = 9;
+		private static final int MAX_LOG_PROBABILITIES = 10;
+		static final int SECTIONS = 11;
+		static final int HEADER_SIZE = 6 * 4 + SECTIONS * 16;
+
+		public static void write(Graph graph, Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				long[] offsets = new long[SECTIONS];
+				long[] lengths = new long[SECTIONS];
+				SectionWriter out = new SectionWriter(channel, HEADER_SIZE);
+
+				byte[][] wordBytes = encode(graph.words);
+				byte[][] tagBytes = encode(graph.tags);
+				writeStrings(out, wordBytes, WORD_OFFSETS, WORD_BYTES, offsets, lengths);
+				out.start(WORD_SORTED, offsets);
+				for (int id : sortedIds(wordBytes)) {
+					out.putInt(id);
+				}
+				lengths[WORD_SORTED] = out.end();
+				writeStrings(out, tagBytes, TAG_OFFSETS, TAG_BYTES, offsets, lengths);
+
+				writeInts(out, graph.bucketStart, BUCKET_START, offsets, lengths);
+				writeInts(out, graph.bucketKeys, BUCKET_KEYS, offsets, lengths);
+				writeInts(out, graph.edgeStart, EDGE_START, offsets, lengths);
+				writeInts(out, graph.edgeTargets, EDGE_TARGETS, offsets, lengths);
+				writeDoubles(out, graph.edgeLogProbabilities, EDGE_LOG_PROBABILITIES, offsets, lengths);
+				writeDoubles(out, graph.maxLogProbabilities, MAX_LOG_PROBABILITIES, offsets, lengths);
+				out.flush();
+
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				header.putInt(MAGIC).putInt(VERSION).putInt(graph.size()).putInt(graph.getTagCount())
+						.putInt(graph.getBucketCount()).putInt(graph.getEdgeCount());
+				for (int s = 0; s < SECTIONS; s++) {
+					header.putLong(offsets[s]).putLong(lengths[s]);
+				}
+				header.flip();
+				channel.write(header, 0);
+			}
+		}
+
+		public static Graph map(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+				while (header.hasRemaining() && channel.read(header) != -1) {
+				}
+				header.flip();
+				if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+					throw new IOException(path + " is not a graph snapshot");
+				}
+				int version = header.getInt();
+				if (version != VERSION) {
+					throw new IOException(path + " has snapshot version " + version + ", expected " + VERSION);
+				}
+				header.position(6 * 4);
+				ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+				for (int s = 0; s < SECTIONS; s++) {
+					long offset = header.getLong();
+					long length = header.getLong();
+					sections[s] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length).order(ByteOrder.LITTLE_ENDIAN);
+				}
+
+				Vocabulary words = new MappedVocabulary(sections[WORD_OFFSETS].asIntBuffer(), sections[WORD_SORTED].asIntBuffer(),
+						sections[WORD_BYTES]);
+				MappedVocabulary mappedTags = new MappedVocabulary(sections[TAG_OFFSETS].asIntBuffer(), null, sections[TAG_BYTES]);
+				String[] tags = new String[mappedTags.size()];
+				for (int id = 0; id < tags.length; id++) {
+					tags[id] = mappedTags.get(id);
+				}
+				return new Graph(words, new HashVocabulary(tags), sections[BUCKET_START].asIntBuffer(),
+						sections[BUCKET_KEYS].asIntBuffer(), sections[EDGE_START].asIntBuffer(), sections[EDGE_TARGETS].asIntBuffer(),
+						sections[EDGE_LOG_PROBABILITIES].asDoubleBuffer(), sections[MAX_LOG_PROBABILITIES].asDoubleBuffer());
+			}
+		}
+
+		// True if the file starts with the snapshot magic number
+		public static boolean isSnapshot(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+				while (magic.hasRemaining() && channel.read(magic) != -1) {
+				}
+				return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+			}
+		}
+
+		private static byte[][] encode(Vocabulary vocabulary) {
+			byte[][] bytes = new byte[vocabulary.size()][];
+			for (int id = 0; id < bytes.length; id++) {
+				bytes[id] = vocabulary.get(id).getBytes(StandardCharsets.UTF_8);
+			}
+			return bytes;
+		}
+
+		private static Integer[] sortedIds(final byte[][] bytes) {
+			Integer[] ids = new Integer[bytes.length];
+			for (int id = 0; id < ids.length; id++) {
+				ids[id] = id;
+			}
+			Arrays.sort(ids, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return MappedVocabulary.compare(bytes[a], 0, bytes[a].length, bytes[b]);
+				}
+			});
+			return ids;
+		}
+
+		private static void writeStrings(SectionWriter out, byte[][] strings, int offsetSection, int bytesSection,
+				long[] offsets, long[] lengths) throws IOException {
+			out.start(offsetSection, offsets);
+			int offset = 0;
+			out.putInt(offset);
+			for (byte[] string : strings) {
+				offset += string.length;
+				out.putInt(offset);
+			}
+			lengths[offsetSection] = out.end();
+			out.start(bytesSection, offsets);
+			for (byte[] string : strings) {
+				out.put(string);
+			}
+			lengths[bytesSection] = out.end();
+		}
+
+		private static void writeInts(SectionWriter out, IntBuffer values, int section, long[] offsets, long[] lengths) throws IOException {
+			out.start(section, offsets);
+			for (int i = 0; i < values.limit(); i++) {
+				out.putInt(values.get(i));
+			}
+			lengths[section] = out.end();
+		}
+
+		private static void writeDoubles(SectionWriter out, DoubleBuffer values, int section, long[] offsets, long[] lengths) throws IOException {
+			out.start(section, offsets);
+			for (int i = 0; i < values.limit(); i++) {
+				out.putDouble(values.get(i));
+			}
+			lengths[section] = out.end();
+		}
+	}
+
+	// Buffered little-endian writer that starts every section on an 8 byte boundary
+	static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private long position;
+		private long sectionStart;
+
+		public SectionWriter(FileChannel channel, long position) {
+			this.channel = channel;
+			this.position = position;
+		}
+
+		public void start(int section, long[] offsets) throws IOException {
+			while (position % 8 != 0) {
+				put((byte) 0);
+			}
+			sectionStart = position;
+			offsets[section] = position;
+		}
+
+		// Length in bytes of the section just written
+		public long end() {
+			return position - sectionStart;
+		}
+
+		public void put(byte value) throws IOException {
+			ensure(1);
+			buffer.put(value);
+			position++;
+		}
+
+		public void put(byte[] values) throws IOException {
+			for (byte value : values) {
+				put(value);
+			}
+		}
+
+		public void putInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+			position += 4;
+		}
+
+		public void putDouble(double value) throws IOException {
+			ensure(8);
+			buffer.putDouble(value);
+			position += 8;
+		}
+
+		public void flush() throws IOException {
+			buffer.flip();
+			long at = position - buffer.remaining();
+			while (buffer.hasRemaining()) {
+				at += channel.write(buffer, at);
+			}
+			buffer.clear();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if (buffer.remaining() < bytes) {
+				flush();
+			}
+		}
+	}
+
+	/*
+	 * Vocabulary backed by a snapshot: offsets[id] .. offsets[id + 1] is the UTF-8 encoding of
+	 * each string in bytes, and sorted lists the ids in byte order for getId().
+	 */
+	static class MappedVocabulary implements Vocabulary {
+		private final IntBuffer offsets;
+		private final IntBuffer sorted;
+		private final ByteBuffer bytes;
+
+		public MappedVocabulary(IntBuffer offsets, IntBuffer sorted, ByteBuffer bytes) {
+			this.offsets = offsets;
+			this.sorted = sorted;
+			this.bytes = bytes;
+		}
+
+		public int size() { return offsets.limit() - 1; }
+
+		public String get(int id) {
+			int from = offsets.get(id);
+			byte[] value = new byte[offsets.get(id + 1) - from];
+			for (int i = 0; i < value.length; i++) {
+				value[i] = bytes.get(from + i);
+			}
+			return new String(value, StandardCharsets.UTF_8);
+		}
+
+		public int getId(String value) {
+			byte[] key = value.getBytes(StandardCharsets.UTF_8);
+			int low = 0;
+			int high = size() - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int id = sorted.get(mid);
+				int cmp = compare(id, key);
+				if (cmp < 0) {
+					low = mid + 1;
+				}
+				else if (cmp > 0) {
+					high = mid - 1;
+				}
+				else {
+					return id;
+				}
+			}
+			return -1;
+		}
+
+		private int compare(int id, byte[] key) {
+			int from = offsets.get(id);
+			int length = offsets.get(id + 1) - from;
+			for (int i = 0; i < length && i < key.length; i++) {
+				int cmp = (bytes.get(from + i) & 0xff) - (key[i] & 0xff);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return length - key.length;
+		}
+
+		// Unsigned lexicographic order, the order getId() searches in
+		static int compare(byte[] value, int offset, int length, byte[] key) {
+			for (int i = 0; i < length && i < key.length; i++) {
+				int cmp = (value[offset + i] & 0xff) - (key[i] & 0xff);
+				if (cmp != 0) {
+					return cmp;
+				}
+			}
+			return length - key.length;
+		}
+	}
+
+	/*
+	 * Streams word/TAG//word/TAG//prob lines into a GraphBuilder. Input is read through a fixed
+	 * size buffer and tokenized in place, so memory is bounded by the graph being built rather
+	 * than the size of the file. Malformed lines are counted and skipped; the first
+	 * MAX_REPORTED_ERRORS are kept with their line number for the caller to read or report().
+	 */
+	static class GraphLoader {
+		static final int BUFFER_SIZE = 1 << 20;
+		private static final int MAX_REPORTED_ERRORS = 100;
+
+		private final GraphBuilder builder = new GraphBuilder();
+		private final ArrayList<String> errors = new ArrayList<String>();
+		private final boolean removals;
+		private long lineNumber;
+		private long malformedLines;
+
+		public GraphLoader() {
+			this(false);
+		}
+
+		// With removals, a probability of 0 is accepted; GraphDelta reads it as an edge to remove
+		public GraphLoader(boolean removals) {
+			this.removals = removals;
+		}
+
+		public GraphBuilder getBuilder() { return this.builder; }
+		public long getMalformedLines() { return this.malformedLines; }
+		public ArrayList<String> getErrors() { return this.errors; }
+
+		public Graph build() {
+			return builder.build();
+		}
+
+		public GraphLoader read(Path path) throws IOException {
+			try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+				return read(channel);
+			}
+		}
+
+		public GraphLoader read(String text) {
+			try {
+				return read(Channels.newChannel(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8))));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// Prints the malformed line count and the reported errors, nothing if every line was read
+		public void report(PrintStream out) {
+			if (malformedLines > 0) {
+				out.println("Skipped " + malformedLines + " malformed lines");
+				for (String error : errors) {
+					out.println("  " + error);
+				}
+			}
+		}
+
+		public GraphLoader read(ReadableByteChannel channel) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			byte[] bytes = buffer.array();
+			boolean skipping = false;
+
+			while (true) {
+				boolean eof = channel.read(buffer) == -1;
+				int limit = buffer.position();
+				int lineStart = 0;
+				for (int i = 0; i < limit; i++) {
+					if (bytes[i] == '\n') {
+						lineNumber++;
+						if (!skipping) {
+							parseLine(bytes, lineStart, i);
+						}
+						skipping = false;
+						lineStart = i + 1;
+					}
+				}
+
+				if (eof) {
+					if (lineStart < limit && !skipping) {
+						lineNumber++;
+						parseLine(bytes, lineStart, limit);
+					}
+					return this;
+				}
+				if (lineStart == 0 && limit == bytes.length) {
+					// Drop the rest of a line that does not fit in the buffer
+					if (!skipping) {
+						malformed(lineNumber + 1, "line longer than " + BUFFER_SIZE + " bytes");
+					}
+					skipping = true;
+					lineStart = limit;
+				}
+				System.arraycopy(bytes, lineStart, bytes, 0, limit - lineStart);
+				buffer.position(limit - lineStart);
+			}
+		}
+
+		private void parseLine(byte[] bytes, int from, int to) {
+			if (to > from && bytes[to - 1] == '\r') {
+				to--;
+			}
+			if (to == from) {
+				return;
+			}
+
+			int first = separator(bytes, from, to);
+			int second = first < 0 ? -1 : separator(bytes, first + 2, to);
+			if (second < 0) {
+				malformed(lineNumber, "expected word/TAG//word/TAG//prob");
+				return;
+			}
+			int slash1 = lastSlash(bytes, from, first);
+			int slash2 = lastSlash(bytes, first + 2, second);
+			if (slash1 <= from || slash1 == first - 1 || slash2 <= first + 2 || slash2 == second - 1) {
+				malformed(lineNumber, "expected word/TAG on both sides");
+				return;
+			}
+
+			double probability;
+			try {
+				probability = Double.parseDouble(new String(bytes, second + 2, to - second - 2, StandardCharsets.ISO_8859_1));
+			} catch (NumberFormatException e) {
+				malformed(lineNumber, "bad probability");
+				return;
+			}
+			if (!((probability > 0 || (removals && probability == 0)) && probability <= 1)) {
+				malformed(lineNumber, "probability out of range: " + probability);
+				return;
+			}
+
+			Interner words = builder.getWords();
+			Interner tags = builder.getTags();
+			builder.addEdge(words.intern(bytes, from, slash1 - from), tags.intern(bytes, slash1 + 1, first - slash1 - 1),
+					words.intern(bytes, first + 2, slash2 - first - 2), tags.intern(bytes, slash2 + 1, second - slash2 - 1),
+					probability);
+		}
+
+		private void malformed(long line, String reason) {
+			malformedLines++;
+			if (errors.size() < MAX_REPORTED_ERRORS) {
+				errors.add("line " + line + ": " + reason);
+			}
+		}
+
+		// Index of the first "//" in [from, to), -1 if there is none
+		private static int separator(byte[] bytes, int from, int to) {
+			for (int i = from; i + 1 < to; i++) {
+				if (bytes[i] == '/' && bytes[i + 1] == '/') {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private static int lastSlash(byte[] bytes, int from, int to) {
+			for (int i = to - 1; i >= from; i--) {
+				if (bytes[i] == '/') {
+					return i;
+				}
+			}
+			return -1;
+		}
+	}
+
+	/*
+	 * Added, removed and re-weighted edges in the input.txt format, applied to a graph with
+	 * applyTo(). A probability of 0 removes the edge, any other probability adds it or replaces its
+	 * old one; when an edge appears more than once the last line wins. Malformed lines are skipped
+	 * and kept in the delta's loader for the caller to check.
+	 */
+	static class GraphDelta {
+		private final GraphLoader loader;
+		private final GraphBuilder edges;
+		private final HashSet<String> tagPairs = new HashSet<String>(); // "pos1/pos2" of every edge; tags never contain '/'
+
+		GraphDelta(GraphLoader loader) {
+			this.loader = loader;
+			this.edges = loader.getBuilder();
+			for (int e = 0; e < edges.getEdgeCount(); e++) {
+				tagPairs.add(edges.getTags().get(edges.getPos1(e)) + "/" + edges.getTags().get(edges.getPos2(e)));
+			}
+		}
+
+		public static GraphDelta load(Path path) throws IOException {
+			return new GraphDelta(new GraphLoader(true).read(path));
+		}
+
+		public static GraphDelta parse(String text) {
+			return new GraphDelta(new GraphLoader(true).read(text));
+		}
+
+		public int size() { return edges.getEdgeCount(); }
+		public GraphLoader getLoader() { return this.loader; }
+
+		// True if some step of sentenceSpec reads a tag pair the delta changes an edge of; per-spec
+		// tables of specs it does not affect stay valid on the updated graph
+		public boolean affects(List<String> sentenceSpec) {
+			for (int i = 1; i < sentenceSpec.size(); i++) {
+				if (tagPairs.contains(sentenceSpec.get(i - 1) + "/" + sentenceSpec.get(i))) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		// Ids in graph of the words whose out-edges the delta changes, skipping words not in graph
+		public int[] getSources(Graph graph) {
+			int[] sources = new int[edges.getWords().size()];
+			int count = 0;
+			boolean[] seen = new boolean[sources.length];
+			for (int e = 0; e < edges.getEdgeCount(); e++) {
+				int source = edges.getSource(e);
+				int id = graph.getWordId(edges.getWords().get(source));
+				if (!seen[source] && id >= 0) {
+					seen[source] = true;
+					sources[count++] = id;
+				}
+			}
+			return Arrays.copyOf(sources, count);
+		}
+
+		/*
+		 * A new graph with the delta applied; graph itself is not modified. New words and tags get
+		 * the next free ids, so every existing id keeps its meaning. The buckets of words the delta
+		 * does not touch are copied as they are, only the changed words are re-sorted, and the best
+		 * edge of every tag pair is recomputed.
+		 */
+		public Graph applyTo(Graph graph) {
+			Vocabulary words = extend(graph.getWords(), edges.getWords());
+			Vocabulary tags = extend(graph.getTags(), edges.getTags());
+			int oldTagCount = graph.getTagCount();
+			int tagCount = tags.size();
+
+			// Changes of each source word, in file order
+			HashMap<Integer, ArrayList<Integer>> changes = new HashMap<Integer, ArrayList<Integer>>();
+			for (int e = 0; e < edges.getEdgeCount(); e++) {
+				int source = words.getId(edges.getWords().get(edges.getSource(e)));
+				ArrayList<Integer> list = changes.get(source);
+				if (list == null) {
+					list = new ArrayList<Integer>();
+					changes.put(source, list);
+				}
+				list.add(e);
+			}
+
+			int capacity = graph.getEdgeCount() + edges.getEdgeCount();
+			int[] bucketStart = new int[words.size() + 1];
+			int[] bucketKeys = new int[capacity];
+			int[] edgeStart = new int[capacity + 1];
+			int[] edgeTargets = new int[capacity];
+			double[] edgeLogProbabilities = new double[capacity];
+			int buckets = 0;
+			int edgeCount = 0;
+			for (int word = 0; word < words.size(); word++) {
+				bucketStart[word] = buckets;
+				ArrayList<Integer> wordChanges = changes.get(word);
+				if (wordChanges == null) {
+					if (word >= graph.size()) {
+						continue; // new word that only appears as a target
+					}
+					// Keys keep their order when the tag count grows, since they order by (pos1, pos2)
+					for (int b = graph.getBucketStart(word); b < graph.getBucketStart(word + 1); b++) {
+						int key = graph.getBucketKey(b);
+						bucketKeys[buckets] = key / oldTagCount * tagCount + key % oldTagCount;
+						edgeStart[buckets++] = edgeCount;
+						for (int e = graph.getEdgeStart(b); e < graph.getEdgeEnd(b); e++) {
+							edgeTargets[edgeCount] = graph.getTarget(e);
+							edgeLogProbabilities[edgeCount++] = graph.getLogProbability(e);
+						}
+					}
+					continue;
+				}
+
+				// (key, target) -> log-probability, in the order the edges are first seen
+				LinkedHashMap<Long, Double> merged = new LinkedHashMap<Long, Double>();
+				if (word < graph.size()) {
+					for (int b = graph.getBucketStart(word); b < graph.getBucketStart(word + 1); b++) {
+						int key = graph.getBucketKey(b);
+						long newKey = key / oldTagCount * tagCount + key % oldTagCount;
+						for (int e = graph.getEdgeStart(b); e < graph.getEdgeEnd(b); e++) {
+							merged.put(newKey << 32 | graph.getTarget(e), graph.getLogProbability(e));
+						}
+					}
+				}
+				for (int e : wordChanges) {
+					long key = tags.getId(edges.getTags().get(edges.getPos1(e))) * tagCount
+							+ tags.getId(edges.getTags().get(edges.getPos2(e)));
+					long edge = key << 32 | words.getId(edges.getWords().get(edges.getTarget(e)));
+					if (edges.getProbability(e) == 0) {
+						merged.remove(edge);
+					}
+					else {
+						merged.put(edge, Math.log(edges.getProbability(e)));
+					}
+				}
+
+				// By key, then most probable first
+				ArrayList<Map.Entry<Long, Double>> sorted = new ArrayList<Map.Entry<Long, Double>>(merged.entrySet());
+				Collections.sort(sorted, new Comparator<Map.Entry<Long, Double>>() {
+					public int compare(Map.Entry<Long, Double> a, Map.Entry<Long, Double> b) {
+						int cmp = Long.compare(a.getKey() >>> 32, b.getKey() >>> 32);
+						return cmp != 0 ? cmp : Double.compare(b.getValue(), a.getValue());
+					}
+				});
+				for (int i = 0; i < sorted.size(); i++) {
+					int key = (int) (sorted.get(i).getKey() >>> 32);
+					if (i == 0 || key != bucketKeys[buckets - 1]) {
+						bucketKeys[buckets] = key;
+						edgeStart[buckets++] = edgeCount;
+					}
+					edgeTargets[edgeCount] = (int) (long) sorted.get(i).getKey();
+					edgeLogProbabilities[edgeCount++] = sorted.get(i).getValue();
+				}
+			}
+			bucketStart[words.size()] = buckets;
+			edgeStart[buckets] = edgeCount;
+
+			double[] maxLogProbabilities = new double[tagCount * tagCount];
+			Arrays.fill(maxLogProbabilities, Double.NEGATIVE_INFINITY);
+			for (int b = 0; b < buckets; b++) {
+				for (int i = edgeStart[b]; i < edgeStart[b + 1]; i++) {
+					maxLogProbabilities[bucketKeys[b]] = Math.max(maxLogProbabilities[bucketKeys[b]], edgeLogProbabilities[i]);
+				}
+			}
+
+			return new Graph(words, tags, IntBuffer.wrap(bucketStart), IntBuffer.wrap(Arrays.copyOf(bucketKeys, buckets)),
+					IntBuffer.wrap(Arrays.copyOf(edgeStart, buckets + 1)), IntBuffer.wrap(Arrays.copyOf(edgeTargets, edgeCount)),
+					DoubleBuffer.wrap(Arrays.copyOf(edgeLogProbabilities, edgeCount)), DoubleBuffer.wrap(maxLogProbabilities));
+		}
+
+		// vocabulary itself if it already has every value of added, otherwise a copy with them appended
+		private static Vocabulary extend(Vocabulary vocabulary, Interner added) {
+			ArrayList<String> values = new ArrayList<String>();
+			for (int id = 0; id < added.size(); id++) {
+				if (vocabulary.getId(added.get(id)) < 0) {
+					values.add(added.get(id));
+				}
+			}
+			if (values.isEmpty()) {
+				return vocabulary;
+			}
+			String[] extended = new String[vocabulary.size() + values.size()];
+			for (int id = 0; id < vocabulary.size(); id++) {
+				extended[id] = vocabulary.get(id);
+			}
+			for (int i = 0; i < values.size(); i++) {
+				extended[vocabulary.size() + i] = values.get(i);
+			}
+			return new HashVocabulary(extended);
+		}
+	}
+
+	/*
+	 * graph - text of input.txt
+	 *
+	 * Malformed lines are skipped; read the text with a GraphLoader to count or report them.
+	 */
+	public static Graph load(String graph) {
+		return new GraphLoader().read(graph).build();
+	}
+
+	/*
+	 * path - graph snapshot written by Snapshot.write(), or a bigram file in the input.txt format
+	 */
+	public static Graph open(Path path) throws IOException {
+		if (Snapshot.isSnapshot(path)) {
+			return Snapshot.map(path);
+		}
+		return load(path);
+	}
+
+	/*
+	 * path - bigram file in the input.txt format
+	 *
+	 * Malformed lines are skipped; read the file with a GraphLoader to count or report them.
+	 */
+	public static Graph load(Path path) throws IOException {
+		return new GraphLoader().read(path).build();
+	}
+	
+	// BREADTH FIRST SEARCH
+	public static Result bfs(Graph graph, int root, Spec spec, SearchOptions options, SearchStats stats) {
+		ArrayList<Sequence> validSequences = new ArrayList<Sequence>();
+		Sequence rootSeq = new Sequence(root);
+		stats.sequencesAllocated++;
+		Queue<Sequence> queue = new ArrayDeque<Sequence>();
+		queue.add(rootSeq);
+		stats.frontier(queue.size());
+
+		while(!queue.isEmpty()) {
+			Sequence seq = queue.remove();
+			if (seq.size() == spec.length()) {
+				validSequences.add(seq);
+				continue;
+			}
+
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(seq.getLastWord(), seq.size());
+			int end = prunedEnd(graph, bucket, seq.size() - 1, options, stats);
+			for (int e = graph.getEdgeStart(bucket); e < end; e++) {
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				queue.add(seq.addWord(graph.getTarget(e), graph.getLogProbability(e)));
+			}
+			stats.frontier(queue.size());
+		}
+		
+		double maxLogProbability = Double.NEGATIVE_INFINITY;
+		Sequence maxProbabilitySeq = null;
+		for (Sequence seq : validSequences){
+			if (seq.getLogProbability() > maxLogProbability) {
+				maxLogProbability = seq.getLogProbability();
+				maxProbabilitySeq = seq;
+			}
+		}
+
+		return toResult(graph, spec, maxProbabilitySeq, stats);
+	}
+	
+	// DEPTH FIRST SEARCH
+	// The stack holds the current path; next[d] and end[d] are the edge cursor of the sequence
+	// of d + 1 words on it.
+	public static Result dfs(Graph graph, int root, Spec spec, SearchOptions options, SearchStats stats) {
+		Sequence maxProbabilitySeq = null;
+		int[] next = new int[spec.length()];
+		int[] end = new int[spec.length()];
+		Stack<Sequence> stack = new Stack<Sequence>();
+		stack.push(new Sequence(root));
+		stats.sequencesAllocated++;
+		if (spec.length() > 1) {
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(root, 1);
+			next[0] = graph.getEdgeStart(bucket);
+			end[0] = prunedEnd(graph, bucket, 0, options, stats);
+		}
+
+		while(!stack.isEmpty()) {
+			Sequence seq = stack.peek();
+			if (seq.size() == spec.length()) {
+				if (maxProbabilitySeq == null || seq.getLogProbability() > maxProbabilitySeq.getLogProbability()) {
+					maxProbabilitySeq = seq;
+				}
+				stack.pop();
+				continue;
+			}
+			
+			int depth = seq.size() - 1;
+			if (next[depth] < end[depth]) {
+				int e = next[depth]++;
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				Sequence newSeq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+				stack.push(newSeq);
+				stats.frontier(stack.size());
+				if (newSeq.size() < spec.length()) {
+					stats.nodesExpanded++;
+					int bucket = spec.getBucket(newSeq.getLastWord(), depth + 2);
+					next[depth + 1] = graph.getEdgeStart(bucket);
+					end[depth + 1] = prunedEnd(graph, bucket, depth + 1, options, stats);
+				}
+			} 
+			else {
+				stack.pop();
+			}
+		}
+
+		return toResult(graph, spec, maxProbabilitySeq, stats);
+	}
+	
+	// BRANCH AND BOUND
+	// Depth first search that only holds the current path and the best complete sequence found so
+	// far. Edges are tried most probable first, and a branch is cut as soon as its sequence plus
+	// the completion bound cannot beat the incumbent; since the rest of the bucket is no more
+	// probable, the remaining siblings are cut with it. Memory is O(spec length).
+	public static Result branchAndBound(Graph graph, int root, Spec spec, SearchStats stats) {
+		double[] bounds = completionBounds(spec);
+		Sequence best = null;
+		int[] next = new int[spec.length()];
+		int[] end = new int[spec.length()];
+		Sequence[] path = new Sequence[spec.length()];
+		path[0] = new Sequence(root);
+		stats.sequencesAllocated++;
+		int depth = 0;
+		if (spec.length() > 1) {
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(root, 1);
+			next[0] = graph.getEdgeStart(bucket);
+			end[0] = graph.getEdgeEnd(bucket);
+		}
+		else {
+			best = path[0];
+			depth = -1;
+		}
+
+		while (depth >= 0) {
+			Sequence seq = path[depth];
+			if (next[depth] >= end[depth]) {
+				depth--;
+				continue;
+			}
+
+			int e = next[depth]++;
+			stats.edgesExamined++;
+			double logProbability = seq.getLogProbability() + graph.getLogProbability(e);
+			if (logProbability + bounds[depth + 2] == Double.NEGATIVE_INFINITY
+					|| (best != null && logProbability + bounds[depth + 2] <= best.getLogProbability())) {
+				stats.prunedBranches += end[depth] - e;
+				next[depth] = end[depth];
+				continue;
+			}
+
+			stats.sequencesAllocated++;
+			Sequence newSeq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+			if (newSeq.size() == spec.length()) {
+				best = newSeq;
+				continue;
+			}
+			depth++;
+			path[depth] = newSeq;
+			stats.frontier(depth + 1);
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(newSeq.getLastWord(), depth + 1);
+			next[depth] = graph.getEdgeStart(bucket);
+			end[depth] = graph.getEdgeEnd(bucket);
+		}
+
+		return toResult(graph, spec, best, stats);
+	}
+	
+	// PARALLEL DEPTH FIRST SEARCH
+	// Exhaustive depth first search split into fork-join tasks: always at the first-level edges,
+	// and deeper while the pool is short of queued work. Ties are resolved in depth first order,
+	// so the result is the same as dfs.
+	public static Result parallelDfs(Graph graph, int root, Spec spec, SearchStats stats) {
+		stats.sequencesAllocated++;
+		SubtreeSearch search = new SubtreeSearch(graph, spec, new Sequence(root));
+		Sequence best = ForkJoinPool.commonPool().invoke(search);
+		stats.add(search.stats);
+		return toResult(graph, spec, best, stats);
+	}
+
+	// The root always splits into one task per first-level edge; below it, subtrees split while
+	// they are deep enough and the pool is not already backed up. Each task counts into its own
+	// stats, which its parent adds up after joining it.
+	@SuppressWarnings("serial") // never serialized
+	static class SubtreeSearch extends RecursiveTask<Sequence> {
+		// Subtrees below the root with fewer levels left than this are searched sequentially
+		private static final int MIN_SPLIT_LEVELS = 3;
+		private static final int MAX_SURPLUS_TASKS = 3;
+
+		final Graph graph;
+		final Spec spec;
+		final Sequence seq;
+		final SearchStats stats = new SearchStats();
+
+		public SubtreeSearch(Graph graph, Spec spec, Sequence seq) {
+			this.graph = graph;
+			this.spec = spec;
+			this.seq = seq;
+		}
+
+		protected Sequence compute() {
+			if (seq.size() == spec.length() || (seq.size() > 1
+					&& (spec.length() - seq.size() < MIN_SPLIT_LEVELS || getSurplusQueuedTaskCount() > MAX_SURPLUS_TASKS))) {
+				return bestCompletion(graph, spec, seq, stats);
+			}
+
+			ArrayList<SubtreeSearch> tasks = new ArrayList<SubtreeSearch>();
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(seq.getLastWord(), seq.size());
+			for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				tasks.add(new SubtreeSearch(graph, spec, seq.addWord(graph.getTarget(e), graph.getLogProbability(e))));
+			}
+			invokeAll(tasks);
+
+			Sequence best = null;
+			for (SubtreeSearch task : tasks) {
+				Sequence taskBest = task.join();
+				stats.add(task.stats);
+				if (taskBest != null && (best == null || taskBest.getLogProbability() > best.getLogProbability())) {
+					best = taskBest;
+				}
+			}
+			return best;
+		}
+	}
+
+	// Best complete sequence extending start, the first found on ties, or null if there is none
+	private static Sequence bestCompletion(Graph graph, Spec spec, Sequence start, SearchStats stats) {
+		Sequence best = null;
+		int[] next = new int[spec.length()];
+		int[] end = new int[spec.length()];
+		Stack<Sequence> stack = new Stack<Sequence>();
+		stack.push(start);
+		if (start.size() < spec.length()) {
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(start.getLastWord(), start.size());
+			next[start.size() - 1] = graph.getEdgeStart(bucket);
+			end[start.size() - 1] = graph.getEdgeEnd(bucket);
+		}
+
+		while (!stack.isEmpty()) {
+			Sequence seq = stack.peek();
+			if (seq.size() == spec.length()) {
+				if (best == null || seq.getLogProbability() > best.getLogProbability()) {
+					best = seq;
+				}
+				stack.pop();
+				continue;
+			}
+
+			int depth = seq.size() - 1;
+			if (next[depth] < end[depth]) {
+				int e = next[depth]++;
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				Sequence newSeq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+				stack.push(newSeq);
+				stats.frontier(stack.size());
+				if (newSeq.size() < spec.length()) {
+					stats.nodesExpanded++;
+					int bucket = spec.getBucket(newSeq.getLastWord(), depth + 2);
+					next[depth + 1] = graph.getEdgeStart(bucket);
+					end[depth + 1] = graph.getEdgeEnd(bucket);
+				}
+			}
+			else {
+				stack.pop();
+			}
+		}
+		return best;
+	}
+	
+	// HEURISTIC SEARCH
+	// Best-first (A*) search: the frontier is ordered by the sequence log-probability plus an
+	// upper bound on the rest of the sentence, so the first complete sequence popped is optimal.
+	// The bound is the per-tag-pair best edges, or the exact best completion when a suffix table
+	// of the spec is given, in which case only sequences on a best path are ever expanded.
+	public static Result heuristic(Graph graph, int root, Spec spec, SearchOptions options, SearchStats stats) {
+		return heuristic(graph, root, spec, options, null, stats);
+	}
+
+	public static Result heuristic(Graph graph, int root, Spec spec, SearchOptions options, SuffixTable table, SearchStats stats) {
+		double[] bounds = completionBounds(spec);
+		long pushed = 0;
+		Sequence rootSeq = new Sequence(root);
+		stats.sequencesAllocated++;
+		PriorityQueue<Candidate> frontier = new PriorityQueue<Candidate>();
+		frontier.add(new Candidate(rootSeq, estimate(rootSeq, bounds, table), pushed++));
+		stats.frontier(frontier.size());
+
+		Sequence maxProbabilitySeq = null;
+		while (!frontier.isEmpty()) {
+			Sequence seq = frontier.poll().getSequence();
+			if (seq.size() == spec.length()) {
+				maxProbabilitySeq = seq;
+				break;
+			}
+
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(seq.getLastWord(), seq.size());
+			int end = prunedEnd(graph, bucket, seq.size() - 1, options, stats);
+			for (int e = graph.getEdgeStart(bucket); e < end; e++) {
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				Sequence newSeq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+				double estimate = estimate(newSeq, bounds, table);
+				if (estimate > Double.NEGATIVE_INFINITY) {
+					frontier.add(new Candidate(newSeq, estimate, pushed++));
+				}
+				else {
+					stats.prunedBranches++;
+				}
+			}
+			stats.frontier(frontier.size());
+		}
+
+		return toResult(graph, spec, maxProbabilitySeq, stats);
+	}
+
+	private static double estimate(Sequence seq, double[] bounds, SuffixTable table) {
+		double rest = table != null ? table.getLogProbability(seq.size() - 1, seq.getLastWord()) : bounds[seq.size()];
+		return seq.getLogProbability() + rest;
+	}
+
+	/*
+	 * End of the edges of bucket, out of a word at position, that survive the probability floor and
+	 * branching cap options set for that position. Buckets are sorted most probable first, so
+	 * each rule cuts a suffix: the floor is found by binary search and the cap is a fixed length.
+	 */
+	private static int prunedEnd(Graph graph, int bucket, int position, SearchOptions options, SearchStats stats) {
+		int start = graph.getEdgeStart(bucket);
+		int end = graph.getEdgeEnd(bucket);
+		int maxBranching = options.getMaxBranching(position);
+		if (options.getProbabilityFloor(position) > 0) {
+			double floor = Math.log(options.getProbabilityFloor(position));
+			int low = start;
+			int high = end;
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (graph.getLogProbability(mid) >= floor) {
+					low = mid + 1;
+				}
+				else {
+					high = mid;
+				}
+			}
+			stats.floorPruned += end - low;
+			stats.prunedBranches += end - low;
+			end = low;
+		}
+		if (end - start > maxBranching) {
+			stats.degreePruned += end - start - maxBranching;
+			stats.prunedBranches += end - start - maxBranching;
+			end = start + maxBranching;
+		}
+		return end;
+	}
+
+	/*
+	 * bounds[i] is an upper bound on the log-probability of completing a sequence of i words: the
+	 * sum of the best edge log-probability in the graph for each remaining tag pair of the spec.
+	 */
+	private static double[] completionBounds(Spec spec) {
+		double[] bounds = new double[spec.length() + 1];
+		for (int i = spec.length() - 1; i > 0; i--) {
+			bounds[i] = bounds[i + 1] + spec.getMaxLogProbability(i);
+		}
+		return bounds;
+	}
+	
+	/*
+	 * One position of a layered search: the best value ending in each word, dense over word ids,
+	 * and the words holding one in the order first reached. Layers are indexed instead of hashed,
+	 * and are read and cleared in time proportional to the words reached, not to the vocabulary.
+	 */
+	static class Layer<T> {
+		private final T[] best;
+		private final int[] words;
+		private int size;
+
+		@SuppressWarnings("unchecked") // only ever holds T
+		public Layer(int vocabularySize) {
+			this.best = (T[]) new Object[vocabularySize];
+			this.words = new int[vocabularySize];
+		}
+
+		public int size() { return this.size; }
+		public int getWord(int k) { return this.words[k]; }
+		public T get(int word) { return this.best[word]; }
+
+		public void put(int word, T value) {
+			if (best[word] == null) {
+				words[size++] = word;
+			}
+			best[word] = value;
+		}
+
+		public void clear() {
+			for (int k = 0; k < size; k++) {
+				best[words[k]] = null;
+			}
+			size = 0;
+		}
+	}
+
+	// VITERBI
+	// Keeps only the best partial sequence ending in each word at each position of the spec;
+	// its parent pointer is the back-pointer, so every edge is examined at most once per position.
+	// Paths dominated by a better one into the same word count as pruned.
+	public static Result viterbi(Graph graph, int root, Spec spec, SearchStats stats) {
+		Layer<Sequence> best = new Layer<Sequence>(graph.size());
+		Layer<Sequence> nextBest = new Layer<Sequence>(graph.size());
+		best.put(root, new Sequence(root));
+		stats.sequencesAllocated++;
+		stats.frontier(best.size());
+
+		for (int i = 1; i < spec.length(); i++) {
+			for (int k = 0; k < best.size(); k++) {
+				Sequence seq = best.get(best.getWord(k));
+				stats.nodesExpanded++;
+				int bucket = spec.getBucket(seq.getLastWord(), i);
+				for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+					stats.edgesExamined++;
+					int nextWord = graph.getTarget(e);
+					Sequence current = nextBest.get(nextWord);
+					if (current == null || seq.getLogProbability() + graph.getLogProbability(e) > current.getLogProbability()) {
+						stats.sequencesAllocated++;
+						nextBest.put(nextWord, seq.addWord(nextWord, graph.getLogProbability(e)));
+					}
+					if (current != null) {
+						stats.prunedBranches++;
+					}
+				}
+			}
+			// The layer just read becomes the scratch for the next one
+			best.clear();
+			Layer<Sequence> scratch = best;
+			best = nextBest;
+			nextBest = scratch;
+			stats.frontier(best.size());
+		}
+
+		double maxLogProbability = Double.NEGATIVE_INFINITY;
+		Sequence maxProbabilitySeq = null;
+		for (int k = 0; k < best.size(); k++) {
+			Sequence seq = best.get(best.getWord(k));
+			if (seq.getLogProbability() > maxLogProbability) {
+				maxLogProbability = seq.getLogProbability();
+				maxProbabilitySeq = seq;
+			}
+		}
+
+		return toResult(graph, spec, maxProbabilitySeq, stats);
+	}
+	
+	// BEAM SEARCH
+	// Keeps only the beamWidth best partial sequences at each position of the spec, so the cost is
+	// O(length * beamWidth * degree). The result may not be the most probable sentence.
+	public static Result beam(Graph graph, int root, Spec spec, int beamWidth, SearchStats stats) {
+		ArrayList<Sequence> beam = new ArrayList<Sequence>();
+		beam.add(new Sequence(root));
+		stats.sequencesAllocated++;
+		stats.frontier(beam.size());
+
+		for (int i = 1; i < spec.length(); i++) {
+			// Reversed Candidate order: the head is the worst sequence kept, the latest found on ties
+			PriorityQueue<Candidate> nextBeam = new PriorityQueue<Candidate>(Math.min(beamWidth, 1024) + 1, Collections.reverseOrder());
+			long found = 0;
+			for (Sequence seq : beam) {
+				stats.nodesExpanded++;
+				int bucket = spec.getBucket(seq.getLastWord(), i);
+				for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+					stats.edgesExamined++;
+					double logProbability = seq.getLogProbability() + graph.getLogProbability(e);
+					if (nextBeam.size() < beamWidth || logProbability > nextBeam.peek().getEstimate()) {
+						stats.sequencesAllocated++;
+						nextBeam.add(new Candidate(seq.addWord(graph.getTarget(e), graph.getLogProbability(e)), logProbability, found++));
+						if (nextBeam.size() > beamWidth) {
+							nextBeam.poll();
+							stats.prunedBranches++;
+						}
+					}
+					else {
+						stats.prunedBranches++;
+					}
+				}
+			}
+			beam = new ArrayList<Sequence>();
+			for (Candidate candidate : nextBeam) {
+				beam.add(candidate.getSequence());
+			}
+			stats.frontier(beam.size());
+		}
+
+		double maxLogProbability = Double.NEGATIVE_INFINITY;
+		Sequence maxProbabilitySeq = null;
+		for (Sequence seq : beam) {
+			if (seq.getLogProbability() > maxLogProbability) {
+				maxLogProbability = seq.getLogProbability();
+				maxProbabilitySeq = seq;
+			}
+		}
+
+		return toResult(graph, spec, maxProbabilitySeq, stats);
+	}
+	
+	// MEMOIZED SEARCH
+	// Solves best(word, position) = max over edges of edge + best(next word, position + 1) depth
+	// first, storing every result in a completion cache keyed by (word, remaining tags). The cache
+	// is shared across queries, so templates with a common suffix reuse each other's work.
+	// Completions count as allocated sequences, and the frontier is the recursion depth.
+	public static Result memoized(Graph graph, int root, Spec spec, CompletionCache cache, SearchStats stats) {
+		Completion completion = complete(graph, spec, 0, root, cache, stats);
+		Sequence best = completion.getLogProbability() == Double.NEGATIVE_INFINITY ? null : completion.extend(new Sequence(root));
+		return toResult(graph, spec, best, stats);
+	}
+
+	private static Completion complete(Graph graph, Spec spec, int position, int word, CompletionCache cache, SearchStats stats) {
+		if (position == spec.length() - 1) {
+			return Completion.END;
+		}
+		CompletionKey key = new CompletionKey(word, spec.getSuffix(position));
+		Completion best = cache.get(key);
+		if (best != null) {
+			return best;
+		}
+
+		stats.nodesExpanded++;
+		stats.frontier(position + 1);
+		best = Completion.DEAD;
+		int bucket = spec.getBucket(word, position + 1);
+		for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+			stats.edgesExamined++;
+			Completion rest = complete(graph, spec, position + 1, graph.getTarget(e), cache, stats);
+			if (graph.getLogProbability(e) + rest.getLogProbability() > best.getLogProbability()) {
+				stats.sequencesAllocated++;
+				best = new Completion(graph.getTarget(e), graph.getLogProbability(e), rest);
+			}
+		}
+		cache.put(key, best);
+		return best;
+	}
+
+	// BIDIRECTIONAL SEARCH
+	// Serves queries with a fixed end word. Best partial sequences are extended forward from the
+	// start, one per word per position as in viterbi, up to the middle position; best completions
+	// are extended backward from the end word over the reverse index down to the same position.
+	// The answer is the best forward sequence plus backward completion meeting at a middle word,
+	// so each half only covers half of the spec. Dominated paths count as pruned.
+	public static Result bidirectional(Graph graph, int root, int endWord, Spec spec, SearchStats stats) {
+		int middle = (spec.length() - 1) / 2;
+		Layer<Sequence> forward = new Layer<Sequence>(graph.size());
+		Layer<Sequence> next = new Layer<Sequence>(graph.size());
+		forward.put(root, new Sequence(root));
+		stats.sequencesAllocated++;
+		for (int i = 1; i <= middle; i++) {
+			for (int k = 0; k < forward.size(); k++) {
+				Sequence seq = forward.get(forward.getWord(k));
+				stats.nodesExpanded++;
+				int bucket = spec.getBucket(seq.getLastWord(), i);
+				for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+					stats.edgesExamined++;
+					int word = graph.getTarget(e);
+					Sequence current = next.get(word);
+					if (current == null || seq.getLogProbability() + graph.getLogProbability(e) > current.getLogProbability()) {
+						stats.sequencesAllocated++;
+						next.put(word, seq.addWord(word, graph.getLogProbability(e)));
+					}
+					if (current != null) {
+						stats.prunedBranches++;
+					}
+				}
+			}
+			forward.clear();
+			Layer<Sequence> scratch = forward;
+			forward = next;
+			next = scratch;
+			stats.frontier(forward.size());
+		}
+
+		ReverseIndex reverse = graph.getReverseIndex();
+		Layer<Completion> backward = new Layer<Completion>(graph.size());
+		Layer<Completion> previous = new Layer<Completion>(graph.size());
+		backward.put(endWord, Completion.END);
+		for (int i = spec.length() - 1; i > middle; i--) {
+			for (int k = 0; k < backward.size(); k++) {
+				int target = backward.getWord(k);
+				Completion rest = backward.get(target);
+				stats.nodesExpanded++;
+				int bucket = reverse.getBucket(target, spec.pairKeys[i]);
+				for (int j = reverse.getEdgeStart(bucket); j < reverse.getEdgeEnd(bucket); j++) {
+					stats.edgesExamined++;
+					int word = reverse.getSource(j);
+					double logProbability = graph.getLogProbability(reverse.getEdge(j));
+					Completion current = previous.get(word);
+					if (current == null || logProbability + rest.getLogProbability() > current.getLogProbability()) {
+						stats.sequencesAllocated++;
+						previous.put(word, new Completion(target, logProbability, rest));
+					}
+					if (current != null) {
+						stats.prunedBranches++;
+					}
+				}
+			}
+			backward.clear();
+			Layer<Completion> scratch = backward;
+			backward = previous;
+			previous = scratch;
+			stats.frontier(backward.size());
+		}
+
+		Sequence best = null;
+		Completion bestCompletion = null;
+		for (int k = 0; k < forward.size(); k++) {
+			Sequence seq = forward.get(forward.getWord(k));
+			Completion completion = backward.get(seq.getLastWord());
+			if (completion != null && (best == null
+					|| seq.getLogProbability() + completion.getLogProbability() > best.getLogProbability() + bestCompletion.getLogProbability())) {
+				best = seq;
+				bestCompletion = completion;
+			}
+		}
+		return toResult(graph, spec, best == null ? null : bestCompletion.extend(best), stats);
+	}
+	
+	// SAMPLE
+	// One random sentence matching the spec, drawn in proportion to its probability
+	public static Result sample(Graph graph, int root, Spec spec, long seed, SearchStats stats) {
+		return sample(graph, root, spec, new Sampler(graph, spec, -1), seed, stats);
+	}
+
+	// sampler - built for spec, and for an end word if the sentence must end with one
+	public static Result sample(Graph graph, int root, Spec spec, Sampler sampler, long seed, SearchStats stats) {
+		return toResult(graph, spec, sampler.sample(graph, spec, root, new SplittableRandom(seed), stats), stats);
+	}
+
+	/*
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 * count - number of sentences to draw
+	 * seed - the same seed draws the same sentences
+	 * returns the sentences in the order drawn, empty if none matches
+	 */
+	public static ArrayList<Result> generateSamples(Graph graph, String startingWord, ArrayList<String> sentenceSpec, int count, long seed) {
+		return generateSamples(graph, null, startingWord, sentenceSpec, count, seed, new SearchStats());
+	}
+
+	// samplers - samplers to reuse across calls, null to build one for this call; stats - totals of every draw
+	private static ArrayList<Result> generateSamples(Graph graph, TableCache<Sampler> samplers, String startingWord, ArrayList<String> sentenceSpec,
+			int count, long seed, SearchStats stats) {
+		ArrayList<Result> results = new ArrayList<Result>();
+		long start = System.nanoTime();
+		int root = graph.getWordId(startingWord);
+		Spec spec = new Spec(graph, sentenceSpec);
+		stats.resolveNanos = System.nanoTime() - start;
+		if (root < 0 || !spec.isSatisfiable()) {
+			return results;
+		}
+		start = System.nanoTime();
+		Sampler sampler = samplers != null ? Sampler.get(samplers, graph, spec, -1) : new Sampler(graph, spec, -1);
+		SplittableRandom random = new SplittableRandom(seed);
+		for (int i = 0; i < count; i++) {
+			SearchStats drawStats = new SearchStats();
+			Sequence seq = sampler.sample(graph, spec, root, random, drawStats);
+			if (seq == null) {
+				break;
+			}
+			stats.add(drawStats);
+			results.add(seq.toResult(graph, spec, drawStats));
+		}
+		stats.searchNanos = System.nanoTime() - start;
+		return results;
+	}
+
+	// TOP K
+	// Depth first search that keeps the k best complete sequences in a min-heap and prunes any
+	// partial sequence whose bound cannot beat the current k-th best.
+	public static ArrayList<Result> topK(Graph graph, int root, Spec spec, int k, SearchStats stats) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		double[] bounds = completionBounds(spec);
+		// Reversed Candidate order: the head is the worst sequence kept, the latest found on ties.
+		// The heap grows as needed, so a k far beyond the number of sentences costs nothing up front.
+		PriorityQueue<Candidate> best = new PriorityQueue<Candidate>(Math.min(k, 1024) + 1, Collections.reverseOrder());
+		long found = 0;
+		int[] next = new int[spec.length()];
+		int[] end = new int[spec.length()];
+		Stack<Sequence> stack = new Stack<Sequence>();
+		stack.push(new Sequence(root));
+		stats.sequencesAllocated++;
+		if (spec.length() > 1) {
+			stats.nodesExpanded++;
+			int bucket = spec.getBucket(root, 1);
+			next[0] = graph.getEdgeStart(bucket);
+			end[0] = graph.getEdgeEnd(bucket);
+		}
+
+		while (!stack.isEmpty()) {
+			Sequence seq = stack.peek();
+			if (seq.size() == spec.length()) {
+				if (best.size() < k || seq.getLogProbability() > best.peek().getEstimate()) {
+					best.add(new Candidate(seq, seq.getLogProbability(), found++));
+					if (best.size() > k) {
+						best.poll();
+					}
+				}
+				stack.pop();
+				continue;
+			}
+
+			int depth = seq.size() - 1;
+			if (next[depth] < end[depth]) {
+				int e = next[depth]++;
+				stats.edgesExamined++;
+				stats.sequencesAllocated++;
+				Sequence newSeq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+				double estimate = newSeq.getLogProbability() + bounds[newSeq.size()];
+				if (estimate == Double.NEGATIVE_INFINITY || (best.size() == k && estimate <= best.peek().getEstimate())) {
+					stats.prunedBranches++;
+					continue;
+				}
+				stack.push(newSeq);
+				stats.frontier(stack.size());
+				if (newSeq.size() < spec.length()) {
+					stats.nodesExpanded++;
+					int bucket = spec.getBucket(newSeq.getLastWord(), depth + 2);
+					next[depth + 1] = graph.getEdgeStart(bucket);
+					end[depth + 1] = graph.getEdgeEnd(bucket);
+				}
+			}
+			else {
+				stack.pop();
+			}
+		}
+
+		ArrayList<Result> results = new ArrayList<Result>();
+		while (!best.isEmpty()) {
+			results.add(best.poll().getSequence().toResult(graph, spec, stats));
+		}
+		Collections.reverse(results);
+		return results;
+	}
+
+	/*
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 * k - number of sentences to return, best first; at least 1
+	 */
+	public static ArrayList<Result> generateTopK(Graph graph, String startingWord, ArrayList<String> sentenceSpec, int k) {
+		return generateTopK(graph, startingWord, sentenceSpec, k, new SearchStats());
+	}
+
+	private static ArrayList<Result> generateTopK(Graph graph, String startingWord, ArrayList<String> sentenceSpec, int k,
+			SearchStats stats) {
+		if (k < 1) {
+			throw new IllegalArgumentException("k must be at least 1: " + k);
+		}
+		long start = System.nanoTime();
+		int root = graph.getWordId(startingWord);
+		Spec spec = new Spec(graph, sentenceSpec);
+		stats.resolveNanos = System.nanoTime() - start;
+		if (root < 0 || !spec.isSatisfiable()) {
+			return new ArrayList<Result>();
+		}
+		start = System.nanoTime();
+		ArrayList<Result> results = topK(graph, root, spec, k, stats);
+		stats.searchNanos = System.nanoTime() - start;
+		return results;
+	}
+	
+	/*
+	 * Best completion score of every word at every position of one spec, computed backward in a
+	 * single pass: getLogProbability(i, w) is the best total log-probability of the edges after
+	 * word w at position i (-Infinity if the spec cannot be finished from w), and bestEdges the
+	 * edges that achieve it. Reading off the best sentence for any starting word is then
+	 * O(length).
+	 *
+	 * The pass walks the reverse index from the words that can finish the spec, so each layer only
+	 * touches words that can still reach the end, and only those words are stored: words[i] gives
+	 * their slots in scores[i] and bestEdges[i]. Every word finishes the spec at the last position
+	 * with score 0, so that layer is not stored. Ties go to the lowest edge id, the first in
+	 * bucket order, as in the forward searches.
+	 *
+	 * Best edges are kept as offsets within their bucket rather than as edge ids, so a table holds
+	 * no reference to the graph it was built on and serves any later graph whose edges for the
+	 * spec's tag pairs are the same; GraphDelta.applyTo() keeps those buckets in order.
+	 */
+	static class SuffixTable implements CachedTable {
+		final ArrayList<String> sentenceSpec;
+		final WordIndex[] words;
+		final double[][] scores;
+		final int[][] bestEdges;
+
+		public SuffixTable(Graph graph, Spec spec) {
+			this.sentenceSpec = new ArrayList<String>(spec.getSentenceSpec());
+			int n = spec.length();
+			this.words = new WordIndex[n];
+			this.scores = new double[n][];
+			this.bestEdges = new int[n][];
+
+			// Dense scores of the layer being built and of the one after it, -Infinity for words
+			// not reached; the first layer read is the last position, where every word scores 0
+			double[] score = new double[graph.size()];
+			double[] nextScore = new double[graph.size()];
+			int[] bestEdge = new int[graph.size()];
+			Arrays.fill(score, Double.NEGATIVE_INFINITY);
+			Arrays.fill(bestEdge, -1);
+			int[] active = GraphBuilder.identity(graph.size());
+			int activeCount = active.length;
+			int[] reached = new int[graph.size()];
+			ReverseIndex reverse = graph.getReverseIndex();
+			for (int i = n - 1; i > 0; i--) {
+				int reachedCount = 0;
+				for (int k = 0; k < activeCount; k++) {
+					int word = active[k];
+					int bucket = reverse.getBucket(word, spec.pairKeys[i]);
+					for (int j = reverse.getEdgeStart(bucket); j < reverse.getEdgeEnd(bucket); j++) {
+						int source = reverse.getSource(j);
+						int e = reverse.getEdge(j);
+						double total = graph.getLogProbability(e) + nextScore[word];
+						if (bestEdge[source] < 0) {
+							reached[reachedCount++] = source;
+						}
+						if (total > score[source] || (total == score[source] && (bestEdge[source] < 0 || e < bestEdge[source]))) {
+							score[source] = total;
+							bestEdge[source] = e;
+						}
+					}
+				}
+
+				words[i - 1] = new WordIndex(reached, reachedCount);
+				scores[i - 1] = new double[reachedCount];
+				bestEdges[i - 1] = new int[reachedCount];
+				for (int k = 0; k < reachedCount; k++) {
+					scores[i - 1][k] = score[reached[k]];
+					bestEdges[i - 1][k] = bestEdge[reached[k]] - graph.getEdgeStart(spec.getBucket(reached[k], i));
+					bestEdge[reached[k]] = -1;
+				}
+				// The layer just read becomes the scratch for the next one
+				for (int k = 0; k < activeCount; k++) {
+					nextScore[active[k]] = Double.NEGATIVE_INFINITY;
+				}
+				double[] scratch = nextScore;
+				nextScore = score;
+				score = scratch;
+				int[] buffer = active;
+				active = reached;
+				activeCount = reachedCount;
+				reached = buffer;
+			}
+		}
+
+		public double getLogProbability(int position, int word) {
+			if (position == words.length - 1) {
+				return 0;
+			}
+			int slot = words[position].getSlot(word);
+			return slot < 0 ? Double.NEGATIVE_INFINITY : scores[position][slot];
+		}
+
+		public ArrayList<String> getSentenceSpec() { return this.sentenceSpec; }
+
+		public long getBytes() {
+			long bytes = 0;
+			for (int i = 0; i < words.length - 1; i++) {
+				bytes += words[i].getBytes() + 12L * scores[i].length;
+			}
+			return bytes;
+		}
+
+		// Best sentence starting with word at position 0, null if there is none. graph and spec are
+		// the ones the table was built for, or ones with the same edges for the spec's tag pairs
+		public Sequence getBest(Graph graph, Spec spec, int word) {
+			if (getLogProbability(0, word) == Double.NEGATIVE_INFINITY) {
+				return null;
+			}
+			Sequence seq = new Sequence(word);
+			for (int i = 0; i < words.length - 1; i++) {
+				int last = seq.getLastWord();
+				int e = graph.getEdgeStart(spec.getBucket(last, i + 1)) + bestEdges[i][words[i].getSlot(last)];
+				seq = seq.addWord(graph.getTarget(e), graph.getLogProbability(e));
+			}
+			return seq;
+		}
+
+		// Table of spec from cache, built by the first query that needs it
+		static SuffixTable get(TableCache<SuffixTable> cache, final Graph graph, final Spec spec) {
+			return cache.get(new ArrayList<String>(spec.getSentenceSpec()), new Callable<SuffixTable>() {
+				public SuffixTable call() {
+					return new SuffixTable(graph, spec);
+				}
+			});
+		}
+	}
+
+	/*
+	 * The words a backward pass reached at one position, so per-position tables only hold a slot
+	 * for those: getSlot(word) is the word's slot in [0, size()), -1 if it was not reached. Open
+	 * addressing over word ids, as in Interner.
+	 */
+	static class WordIndex {
+		private final int[] words;
+		private final int[] table; // slot + 1 of the word in each entry, 0 if empty
+
+		public WordIndex(int[] words, int count) {
+			this.words = Arrays.copyOf(words, count);
+			this.table = new int[Integer.highestOneBit(Math.max(count, 1) * 2 - 1) * 2];
+			int mask = table.length - 1;
+			for (int slot = 0; slot < count; slot++) {
+				int i = hash(words[slot]) & mask;
+				while (table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				table[i] = slot + 1;
+			}
+		}
+
+		public int size() { return words.length; }
+		public int getWord(int slot) { return words[slot]; }
+		public long getBytes() { return 4L * (words.length + table.length); }
+
+		public int getSlot(int word) {
+			int mask = table.length - 1;
+			for (int i = hash(word) & mask; table[i] != 0; i = (i + 1) & mask) {
+				if (words[table[i] - 1] == word) {
+					return table[i] - 1;
+				}
+			}
+			return -1;
+		}
+
+		private static int hash(int word) {
+			int hash = word * 0x9E3779B9;
+			return hash ^ (hash >>> 16);
+		}
+	}
+
+	// A per-spec table a TableCache can hold; getBytes() is what it counts against the bound
+	interface CachedTable {
+		long getBytes();
+		List<String> getSentenceSpec();
+	}
+
+	/*
+	 * LRU cache of per-spec tables for one graph, bounded by the bytes the tables hold rather than
+	 * by their number, since one table for a long spec over a large vocabulary outweighs many
+	 * short ones. Each table is built once per key: the first query to miss builds it outside the
+	 * lock, and queries for the same key meanwhile wait for that build instead of repeating it.
+	 */
+	static class TableCache<T extends CachedTable> {
+		static final long DEFAULT_MAX_BYTES = 256L << 20;
+
+		// A table being built or built; table and bytes stay unset until the build finishes and is counted
+		static class Entry<T> {
+			final FutureTask<T> task;
+			T table;
+			long bytes;
+
+			Entry(FutureTask<T> task) {
+				this.task = task;
+			}
+		}
+
+		private final long maxBytes;
+		private final LinkedHashMap<Object, Entry<T>> entries = new LinkedHashMap<Object, Entry<T>>(16, 0.75f, true);
+		private long bytes;
+
+		public TableCache(long maxBytes) {
+			this.maxBytes = maxBytes;
+		}
+
+		/*
+		 * key - identifies the table; must not change once cached
+		 * build - computes the table on a miss
+		 */
+		public T get(Object key, Callable<T> build) {
+			Entry<T> entry;
+			boolean building = false;
+			synchronized (entries) {
+				entry = entries.get(key);
+				if (entry == null) {
+					entry = new Entry<T>(new FutureTask<T>(build));
+					entries.put(key, entry);
+					building = true;
+				}
+			}
+			if (building) {
+				entry.task.run();
+			}
 
-	static class Edge {
-		String beforePos;
-		Node node;
-		double probability;
-		
-		public Edge(String beforePos, Node node, double probability) {
-			this.beforePos = beforePos;
-			this.node = node;
-			this.probability = probability;
-		}
-		
-		public String getBeforePos() { return this.beforePos; }
-		public Node getNode() { return this.node; }
-		public double getProbability() { return this.probability; }
-	}
-	static class Node {
-		String word;
-		HashMap<String, ArrayList<Edge>> posMap;
-		
-		public Node(String word, ArrayList<String> sentenceSpec) {
-			this.word = word;
-			this.posMap = new HashMap<String, ArrayList<Edge>>();
-			
-			for (String pos : sentenceSpec) {
-				posMap.put(pos, new ArrayList<Edge>());
-			}			
+			T table;
+			try {
+				table = entry.task.get();
+			} catch (ExecutionException e) {
+				synchronized (entries) {
+					entries.remove(key, entry);
+				}
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				if (e.getCause() instanceof Error) {
+					throw (Error) e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			}
+
+			if (building) {
+				synchronized (entries) {
+					entry.table = table;
+					entry.bytes = table.getBytes();
+					bytes += entry.bytes;
+					// Least recently used first; tables still being built are not counted yet
+					Iterator<Entry<T>> i = entries.values().iterator();
+					while (bytes > maxBytes && i.hasNext()) {
+						Entry<T> eldest = i.next();
+						if (eldest.bytes > 0) {
+							bytes -= eldest.bytes;
+							i.remove();
+						}
+					}
+				}
+			}
+			return table;
 		}
-		
-		public String getWord() { return this.word; }
-		public ArrayList<Edge> getEdges(String pos) {
-			return posMap.get(pos);
+
+		public int size() {
+			synchronized (entries) {
+				return entries.size();
+			}
 		}
 
-		public void addEdge(String pos1, String pos2, Node node, double probability) {
-			Edge edge = new Edge(pos1, node, probability);
-			posMap.get(pos2).add(edge);
+		public long getBytes() {
+			synchronized (entries) {
+				return bytes;
+			}
 		}
 
-		// For debugging purposes
-		public String toString() {
-			String output = word + ": ";
-			for (ArrayList<Edge> edges : posMap.values()) {
-				for (Edge edge : edges) {
-					output += "(" + edge.getBeforePos() + " - " + edge.getProbability() + " - " + edge.getNode().getWord() + "), ";
+		// A new cache with the built tables that keep accepts, in the same LRU order; builds still
+		// running are left out, and the queries waiting on them get their table from this cache
+		public TableCache<T> copyRetaining(Predicate<? super T> keep) {
+			TableCache<T> copy = new TableCache<T>(maxBytes);
+			synchronized (entries) {
+				for (Map.Entry<Object, Entry<T>> entry : entries.entrySet()) {
+					Entry<T> value = entry.getValue();
+					if (value.table != null && keep.test(value.table)) {
+						copy.entries.put(entry.getKey(), value);
+						copy.bytes += value.bytes;
+					}
 				}
 			}
-			return output;
+			return copy;
 		}
-		
 	}
-	
-	static class Word {
-		String text;
-		String pos;
-		double probability;
 
-		public Word(String text, String pos, double probability) {
-			this.text = text;
-			this.pos = pos;
-			this.probability = probability;
+	/*
+	 * Best way to finish a sentence from some word: the next word, the edge to it and the best
+	 * completion from there, so completions share their tails. logProbability is the total of
+	 * the remaining edges, 0 at the end of the spec and -Infinity if the spec cannot be finished.
+	 */
+	static class Completion {
+		static final Completion END = new Completion(-1, 0, null);
+		static final Completion DEAD = new Completion(-1, Double.NEGATIVE_INFINITY, null);
+
+		final int next;
+		final double edgeLogProbability;
+		final Completion rest;
+		final double logProbability;
+
+		public Completion(int next, double edgeLogProbability, Completion rest) {
+			this.next = next;
+			this.edgeLogProbability = edgeLogProbability;
+			this.rest = rest;
+			this.logProbability = rest == null ? edgeLogProbability : edgeLogProbability + rest.logProbability;
 		}
 
-		public String getText() { return this.text; }
-		public String getPos() { return this.pos; }
-		public double getProbability() { return this.probability; }
+		public double getLogProbability() { return this.logProbability; }
 
+		// Appends the completion to seq
+		public Sequence extend(Sequence seq) {
+			for (Completion completion = this; completion.next >= 0; completion = completion.rest) {
+				seq = seq.addWord(completion.next, completion.edgeLogProbability);
+			}
+			return seq;
+		}
 	}
-	static class Child {
-		Word word;
-		boolean visited;
-		
-		public Child(Word word) {
+
+	// (word, tag of the word, tags after it); the tags are the Spec suffix from the word's position
+	static class CompletionKey {
+		final int word;
+		final int[] tags;
+		final int hash;
+
+		public CompletionKey(int word, int[] tags) {
 			this.word = word;
-			this.visited = false;
+			this.tags = tags;
+			this.hash = 31 * word + Arrays.hashCode(tags);
 		}
-		
-		public Word getWord() {
-			return this.word;
-		}
-		public boolean isVisited() {
-			return this.visited;
+
+		public int hashCode() {
+			return hash;
 		}
-		
-		public void visit() {
-			this.visited = true;
+
+		public boolean equals(Object other) {
+			if (!(other instanceof CompletionKey)) {
+				return false;
+			}
+			CompletionKey key = (CompletionKey) other;
+			return hash == key.hash && word == key.word && Arrays.equals(tags, key.tags);
 		}
 	}
-	static class Sequence {
-		ArrayList<Word> words;
-		ArrayList<Child> children;
 
-		public Sequence() {
-			this.words = new ArrayList<Word>();
-			this.children = new ArrayList<Child>();
-		}
-		private Sequence(ArrayList<Word> words) {
-			this.words = new ArrayList<Word>(words);
-			this.children = new ArrayList<Child>();
-		}
+	/*
+	 * Bounded LRU cache of best completions for one graph, shared by all queries against it.
+	 * Entries are striped over SEGMENTS independently locked LRU maps by key hash, so concurrent
+	 * MEMOIZED queries mostly take different locks; eviction is least recently used within a
+	 * segment. Hit and miss counts are kept for sizing.
+	 */
+	static class CompletionCache {
+		static final int DEFAULT_CAPACITY = 100000;
+		static final int SEGMENTS = 16;
 
-		public Sequence copy() {
-			return new Sequence(this.words);
-		}
+		private final int capacity;
+		private final LinkedHashMap<CompletionKey, Completion>[] segments;
+		private final LongAdder hits = new LongAdder();
+		private final LongAdder misses = new LongAdder();
 
-		public int size() {
-			return words.size();
+		// capacity - rounded up to a multiple of the number of segments
+		@SuppressWarnings({ "unchecked", "rawtypes" }) // no generic array creation
+		public CompletionCache(int capacity) {
+			this.capacity = capacity;
+			// Fewer segments for small capacities, so each holds at least one entry
+			this.segments = new LinkedHashMap[Math.min(SEGMENTS, Integer.highestOneBit(Math.max(capacity, 1)))];
+			final int segmentCapacity = (capacity + segments.length - 1) / segments.length;
+			for (int i = 0; i < segments.length; i++) {
+				segments[i] = new LinkedHashMap<CompletionKey, Completion>(16, 0.75f, true) {
+					protected boolean removeEldestEntry(Map.Entry<CompletionKey, Completion> eldest) {
+						return size() > segmentCapacity;
+					}
+				};
+			}
 		}
 
-		public Word getLastWord() {
-			return words.get(words.size() - 1);
+		private LinkedHashMap<CompletionKey, Completion> segment(CompletionKey key) {
+			// Top bits of a Fibonacci hash; segments.length is a power of two
+			int hash = key.hashCode() * 0x9E3779B9;
+			return segments[(hash >>> 16) & (segments.length - 1)];
 		}
 
-		public String getSentence(){
-			ArrayList<String> texts = new ArrayList<String>();
-			for (Word word : words) {
-				texts.add(word.getText());
+		public Completion get(CompletionKey key) {
+			LinkedHashMap<CompletionKey, Completion> segment = segment(key);
+			Completion completion;
+			synchronized (segment) {
+				completion = segment.get(key);
 			}
-			return String.join(" ", texts);
+			(completion != null ? hits : misses).increment();
+			return completion;
 		}
 
-		public double getTotalProbability() {
-			double probability = 1;
-			for (Word word : words) {
-				probability *= word.getProbability();
+		public void put(CompletionKey key, Completion completion) {
+			LinkedHashMap<CompletionKey, Completion> segment = segment(key);
+			synchronized (segment) {
+				segment.put(key, completion);
 			}
-			return probability;
 		}
-		
-		public Word getNextChild() {
-			for (Child child : children) {
-				if (!child.isVisited()) {
-					child.visit();
-					return child.getWord();
+
+		public void clear() {
+			for (LinkedHashMap<CompletionKey, Completion> segment : segments) {
+				synchronized (segment) {
+					segment.clear();
 				}
 			}
-			return null;
-		}
-		
-		public boolean hasChildren() {
-			return !this.children.isEmpty();
 		}
 
-		public boolean addWord(String word, String pos, double probability, ArrayList<String> sentenceSpec) {
-			if (words.size() < sentenceSpec.size() && sentenceSpec.get(words.size()).equals(pos)) {
-				this.words.add(new Word(word, pos, probability));
-				return true;
-			}
-			return false;
-		}
-		
-		public boolean addWord(Word word, ArrayList<String> sentenceSpec) {
-			if (words.size() < sentenceSpec.size() && sentenceSpec.get(words.size()).equals(word.getPos())) {
-				this.words.add(word);
-				return true;
+		// A new cache of the same capacity with every entry except those of the dropped words
+		public CompletionCache copyWithout(boolean[] dropped) {
+			CompletionCache copy = new CompletionCache(capacity);
+			for (int i = 0; i < segments.length; i++) {
+				synchronized (segments[i]) {
+					for (Map.Entry<CompletionKey, Completion> entry : segments[i].entrySet()) {
+						int word = entry.getKey().word;
+						if (word >= dropped.length || !dropped[word]) {
+							copy.segments[i].put(entry.getKey(), entry.getValue());
+						}
+					}
+				}
 			}
-			return false;
+			return copy;
 		}
-		
-		public void addChild(String word, String pos, double probability, ArrayList<String> sentenceSpec){
-			if (words.size() < sentenceSpec.size() && sentenceSpec.get(words.size()).equals(pos)) {
-				Word childWord = new Word(word, pos, probability);
-				children.add(new Child(childWord));
+
+		public int size() {
+			int size = 0;
+			for (LinkedHashMap<CompletionKey, Completion> segment : segments) {
+				synchronized (segment) {
+					size += segment.size();
+				}
 			}
+			return size;
 		}
+
+		public long getHits() { return hits.sum(); }
+		public long getMisses() { return misses.sum(); }
 	}
-	
-	private static Node getNodeFromMaster(String word, ArrayList<String> sentenceSpec) {
-		if (masterMap.get(word) == null) {
-			Node newNode = new Node(word, sentenceSpec);
-			masterMap.put(word, newNode);
-			return newNode;			
-		} 
-		else { return masterMap.get(word); }
-	}
-	
-	// BREADTH FIRST SEARCH
-	public static String bfs(Node root, ArrayList<String> sentenceSpec) {
-		ArrayList<Sequence> validSequences = new ArrayList<Sequence>();
-		int nodesConsidered = 0;
-		Sequence rootSeq = new Sequence();
-		rootSeq.addWord(root.getWord(), sentenceSpec.get(0), 1, sentenceSpec);
-		Queue queue = new LinkedList();
-		queue.add(rootSeq);
 
-		while(!queue.isEmpty()) {
-			Sequence seq = (Sequence)queue.remove();
-			if (seq.size() == sentenceSpec.size()) {
-				validSequences.add(seq);
-				continue;
-			}
+	/*
+	 * Query engine over one loaded graph. The graph is immutable and every query keeps its search
+	 * state on its own stack, so any number of threads can query one engine concurrently without
+	 * locking. The only shared state is the completion, suffix table and sampler caches, which are
+	 * thread-safe and are replaced together with the graph by reload() and apply(). Suffix tables
+	 * and samplers cover every word, so apply() starts with none.
+	 */
+	static class Engine {
+		private final int cacheCapacity;
+		private volatile EngineState state;
+		private final CopyOnWriteArrayList<MetricsListener> listeners = new CopyOnWriteArrayList<MetricsListener>();
 
-			Word word = seq.getLastWord();
-			Node node = masterMap.get(word.getText());
-			String nextPos = sentenceSpec.get(seq.size());
-			for (Edge edge : node.getEdges(nextPos)) {
-				nodesConsidered++;
-				if (edge.getBeforePos().equals(word.getPos())) {
-					Sequence newSeq = seq.copy();
-					Node nextNode = edge.getNode();
-					if (newSeq.addWord(nextNode.getWord(), nextPos, edge.getProbability(), sentenceSpec)){
-						queue.add(newSeq);
-					}
-				}
-			}
+		public Engine(Graph graph) {
+			this(graph, CompletionCache.DEFAULT_CAPACITY);
 		}
-		
-		double maxProbability = 0;
-		Sequence maxProbabilitySeq = null;
-		for (Sequence seq : validSequences){
-			if (seq.getTotalProbability() > maxProbability) {
-				maxProbability = seq.getTotalProbability();
-				maxProbabilitySeq = seq;
-			}
+
+		public Engine(Graph graph, int cacheCapacity) {
+			this.cacheCapacity = cacheCapacity;
+			this.state = new EngineState(graph, new CompletionCache(cacheCapacity));
 		}
 
-		DecimalFormat df = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
-		df.setMaximumFractionDigits(340);
+		public Graph getGraph() { return this.state.graph; }
+		public CompletionCache getCompletionCache() { return this.state.cache; }
+		public TableCache<SuffixTable> getSuffixTableCache() { return this.state.tables; }
+		public TableCache<Sampler> getSamplerCache() { return this.state.samplers; }
 
-		return "\"" + maxProbabilitySeq.getSentence() + "\" with probability " + df.format(maxProbability) + "\nTotal nodes considered: " + nodesConsidered;
-	}
-	
-	// DEPTH FIRST SEARCH
-	public static String dfs(Node root, ArrayList<String> sentenceSpec) {
-		ArrayList<Sequence> validSequences = new ArrayList<Sequence>();
-		int nodesConsidered = 0;
-		Sequence rootSeq = new Sequence();
-		rootSeq.addWord(root.getWord(), sentenceSpec.get(0), 1, sentenceSpec);
-		Stack stack = new Stack();
-		stack.push(rootSeq);
+		// Queries already running finish against the old graph
+		public synchronized void reload(Graph graph) {
+			this.state = new EngineState(graph, new CompletionCache(cacheCapacity));
+		}
 
-		while(!stack.isEmpty()) {
-			Sequence seq = (Sequence)stack.peek();
-			if (seq.size() == sentenceSpec.size()) {
-				validSequences.add(seq);
-				stack.pop();
-				continue;
+		/*
+		 * Applies delta to a copy of the graph and swaps it in. Queries already running finish
+		 * against the old graph and caches; new ones see the update. Only cached completions of
+		 * words that can reach a changed word are dropped, and only suffix tables and samplers of
+		 * specs that read a changed tag pair; the rest carry over to the new caches.
+		 * Returns the number of words whose completions were dropped.
+		 */
+		public synchronized int apply(final GraphDelta delta) {
+			EngineState state = this.state;
+			Graph graph = delta.applyTo(state.graph);
+			boolean[] dropped = ancestors(graph, delta.getSources(graph));
+			Predicate<CachedTable> unaffected = new Predicate<CachedTable>() {
+				public boolean test(CachedTable table) {
+					return !delta.affects(table.getSentenceSpec());
+				}
+			};
+			this.state = new EngineState(graph, state.cache.copyWithout(dropped), state.tables.copyRetaining(unaffected),
+					state.samplers.copyRetaining(unaffected));
+			int count = 0;
+			for (boolean word : dropped) {
+				count += word ? 1 : 0;
 			}
-			
-			if (!seq.hasChildren()) {
-				Word word = seq.getLastWord();
-				Node node = masterMap.get(word.getText());
-				String nextPos = sentenceSpec.get(seq.size());
-				for (Edge edge : node.getEdges(nextPos)) {
-					nodesConsidered++;
-					if (edge.getBeforePos().equals(word.getPos())) {
-						Node nextNode = edge.getNode();
-						seq.addChild(nextNode.getWord(), nextPos, edge.getProbability(), sentenceSpec);
-					}
+			return count;
+		}
+
+		// words and every word with a path to one of them, whatever the tags
+		private static boolean[] ancestors(Graph graph, int[] words) {
+			ReverseIndex reverse = graph.getReverseIndex();
+			boolean[] reached = new boolean[graph.size()];
+			ArrayDeque<Integer> queue = new ArrayDeque<Integer>();
+			for (int word : words) {
+				if (!reached[word]) {
+					reached[word] = true;
+					queue.add(word);
 				}
 			}
-			
-			Word child = seq.getNextChild();
-			if (child != null) {
-				Sequence newSeq = seq.copy();
-				if (newSeq.addWord(child, sentenceSpec)){
-					stack.push(newSeq);
+			while (!queue.isEmpty()) {
+				int word = queue.remove();
+				int end = reverse.getEdgeStart(reverse.getBucketStart(word + 1));
+				for (int i = reverse.getEdgeStart(reverse.getBucketStart(word)); i < end; i++) {
+					if (!reached[reverse.getSource(i)]) {
+						reached[reverse.getSource(i)] = true;
+						queue.add(reverse.getSource(i));
+					}
 				}
-			} 
-			else {
-				stack.pop();
 			}
+			return reached;
 		}
 
-		double maxProbability = 0;
-		Sequence maxProbabilitySeq = null;
-		for (Sequence seq : validSequences){
-			if (seq.getTotalProbability() > maxProbability) {
-				maxProbability = seq.getTotalProbability();
-				maxProbabilitySeq = seq;
-			}
+		public String generate(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy) {
+			return generate(startingWord, sentenceSpec, searchStrategy, new SearchOptions());
 		}
 
-		DecimalFormat df = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
-		df.setMaximumFractionDigits(340);
+		// Listeners are called on the querying thread after every query
+		public void addMetricsListener(MetricsListener listener) {
+			listeners.add(listener);
+		}
 
-		return "\"" + maxProbabilitySeq.getSentence() + "\" with probability " + df.format(maxProbability) + "\nTotal nodes considered: " + nodesConsidered;
-	}
-	
-	// HEURISTIC SEARCH
-	public static String heuristic(Node root, ArrayList<String> sentenceSpec) {
-		HashMap<Sequence, Double> sequences = new HashMap<Sequence, Double>();
-		int nodesConsidered = 0;
-		Sequence rootSeq = new Sequence();
-		rootSeq.addWord(root.getWord(), sentenceSpec.get(0), 1, sentenceSpec);
-		sequences.put(rootSeq, rootSeq.getTotalProbability());
+		public void removeMetricsListener(MetricsListener listener) {
+			listeners.remove(listener);
+		}
 
-		Sequence maxProbabilitySeq = null;
-		while (true) {
-			double maxProbability = 0;
-			for (Sequence seq : sequences.keySet()) {
-				nodesConsidered++;
-				if (sequences.get(seq) > maxProbability) {
-					maxProbabilitySeq = seq;
-				}
-			}
-			sequences.remove(maxProbabilitySeq);
+		public String generate(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchOptions options) {
+			return format(generateResult(startingWord, sentenceSpec, searchStrategy, options), searchStrategy, options);
+		}
 
-			if (maxProbabilitySeq.size() == sentenceSpec.size()) {
-				break;
+		public Result generateResult(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchOptions options) {
+			EngineState state = this.state;
+			Result result = Part3.generateResult(state.graph, state.cache, state.tables, state.samplers, startingWord, sentenceSpec, searchStrategy, options);
+			if (result != null) {
+				notify(startingWord, sentenceSpec, searchStrategy, result.getStats());
 			}
-			else {
-				Word word = maxProbabilitySeq.getLastWord();
-				Node node = masterMap.get(word.getText());
-				String nextPos = sentenceSpec.get(maxProbabilitySeq.size());
-				for (Edge edge : node.getEdges(nextPos)) {
-					if (edge.getBeforePos().equals(word.getPos())) {
-						Sequence newSeq = maxProbabilitySeq.copy();
-						Node nextNode = edge.getNode();
-						if (newSeq.addWord(nextNode.getWord(), nextPos, edge.getProbability(), sentenceSpec)){
-							sequences.put(newSeq, estimateProbability(nextNode, sentenceSpec, newSeq.size(), newSeq.getTotalProbability()));
-							//System.out.println(estimateProbability(nextNode, sentenceSpec, newSeq.size(), newSeq.getTotalProbability()));
-						}
-					}
-				}
+			return result;
+		}
+
+		// Listeners get one call with the totals of every draw
+		public ArrayList<Result> generateSamples(String startingWord, ArrayList<String> sentenceSpec, int count, long seed) {
+			EngineState state = this.state;
+			SearchStats stats = new SearchStats();
+			ArrayList<Result> results = Part3.generateSamples(state.graph, state.samplers, startingWord, sentenceSpec, count, seed, stats);
+			notify(startingWord, sentenceSpec, "SAMPLE", stats);
+			return results;
+		}
+
+		public ArrayList<Result> generateTopK(String startingWord, ArrayList<String> sentenceSpec, int k) {
+			SearchStats stats = new SearchStats();
+			ArrayList<Result> results = Part3.generateTopK(state.graph, startingWord, sentenceSpec, k, stats);
+			notify(startingWord, sentenceSpec, "TOP_K", stats);
+			return results;
+		}
+
+		private void notify(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchStats stats) {
+			for (MetricsListener listener : listeners) {
+				listener.onQuery(startingWord, sentenceSpec, searchStrategy, stats);
 			}
 		}
+	}
 
-		DecimalFormat df = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
-		df.setMaximumFractionDigits(340);
+	// A graph and the caches derived from it, swapped as one
+	static class EngineState {
+		final Graph graph;
+		final CompletionCache cache;
+		final TableCache<SuffixTable> tables;
+		final TableCache<Sampler> samplers;
+
+		public EngineState(Graph graph, CompletionCache cache) {
+			this(graph, cache, new TableCache<SuffixTable>(TableCache.DEFAULT_MAX_BYTES), new TableCache<Sampler>(TableCache.DEFAULT_MAX_BYTES));
+		}
 
-		return "\"" + maxProbabilitySeq.getSentence() + "\" with probability " + df.format(maxProbabilitySeq.getTotalProbability()) + "\nTotal nodes considered: " + nodesConsidered;
+		public EngineState(Graph graph, CompletionCache cache, TableCache<SuffixTable> tables, TableCache<Sampler> samplers) {
+			this.graph = graph;
+			this.cache = cache;
+			this.tables = tables;
+			this.samplers = samplers;
+		}
 	}
-	private static double estimateProbability(Node node, ArrayList<String> sentenceSpec, int index, double probability) {
-		
-		if (index == sentenceSpec.size()) {
-			return probability;
+
+	interface MetricsListener {
+		void onQuery(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchStats stats);
+	}
+
+	/*
+	 * Thread-safe histogram of non-negative values in power-of-two buckets: bucket 0 counts 0 and
+	 * bucket i counts [2^(i - 1), 2^i). Quantiles are the upper bound of their bucket, so they are
+	 * within a factor of 2 of the true value.
+	 */
+	static class Histogram {
+		private final AtomicLongArray buckets = new AtomicLongArray(64);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		public void record(long value) {
+			buckets.incrementAndGet(value <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			max.accumulateAndGet(value, Math::max);
 		}
-		else {
-			double newProbability = probability;
-			for (Edge edge : node.getEdges(sentenceSpec.get(index))) {
-				if (edge.getBeforePos().equals(sentenceSpec.get(index))) {
-					newProbability *= estimateProbability(edge.getNode(), sentenceSpec, index + 1, edge.getProbability());
+
+		public long getCount() { return count.get(); }
+		public long getMax() { return max.get(); }
+
+		public long getQuantile(double quantile) {
+			long rank = (long) Math.ceil(quantile * count.get());
+			long seen = 0;
+			for (int i = 0; i < buckets.length(); i++) {
+				seen += buckets.get(i);
+				if (seen >= rank && seen > 0) {
+					return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
 				}
 			}
-			return newProbability;
+			return max.get();
 		}
-		
-		/*
-		if (index == sentenceSpec.size()) {
-			return probability;
+
+		public String toString() {
+			return "p50 " + getQuantile(0.5) + ", p99 " + getQuantile(0.99) + ", max " + getMax();
 		}
-		else {
-			Edge maxEdge = null;
-			for (Edge edge : node.getEdges(sentenceSpec.get(index))) {
-				if (edge.getBeforePos().equals(sentenceSpec.get(index))) {
-					if (maxEdge == null || edge.getProbability() > maxEdge.getProbability()) {
-						maxEdge = edge;
-					}
+	}
+
+	// JMX view of SearchMetrics; MBean interfaces have to be public
+	public interface SearchMetricsMBean {
+		long getQueries();
+		long getSearchMicrosP50();
+		long getSearchMicrosP99();
+		long getSearchMicrosMax();
+		long getResolveMicrosP99();
+		long getEdgesExaminedP99();
+		long getNodesExpandedP99();
+		long getPeakFrontierP99();
+		long getSequencesAllocatedP99();
+		long getPrunedBranchesP99();
+		String getSlowestQuery();
+	}
+
+	/*
+	 * Histograms of the stats of every query reported to it, plus the slowest query seen, so the
+	 * templates and starting words behind the tail latency can be found. Register with an Engine
+	 * as a listener and, optionally, with the platform MBean server.
+	 */
+	static class SearchMetrics implements MetricsListener, SearchMetricsMBean {
+		final Histogram searchMicros = new Histogram();
+		final Histogram resolveMicros = new Histogram();
+		final Histogram edgesExamined = new Histogram();
+		final Histogram nodesExpanded = new Histogram();
+		final Histogram peakFrontier = new Histogram();
+		final Histogram sequencesAllocated = new Histogram();
+		final Histogram prunedBranches = new Histogram();
+		private long slowestNanos = -1;
+		private String slowestQuery = "";
+
+		public void onQuery(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchStats stats) {
+			searchMicros.record(stats.getSearchNanos() / 1000);
+			resolveMicros.record(stats.getResolveNanos() / 1000);
+			edgesExamined.record(stats.getEdgesExamined());
+			nodesExpanded.record(stats.getNodesExpanded());
+			peakFrontier.record(stats.getPeakFrontier());
+			sequencesAllocated.record(stats.getSequencesAllocated());
+			prunedBranches.record(stats.getPrunedBranches());
+			synchronized (this) {
+				if (stats.getSearchNanos() > slowestNanos) {
+					slowestNanos = stats.getSearchNanos();
+					slowestQuery = searchStrategy + " " + startingWord + " " + sentenceSpec + ": " + stats;
 				}
 			}
-			if (maxEdge == null) return probability;
-			return probability*estimateProbability(maxEdge.getNode(), sentenceSpec, index + 1, maxEdge.getProbability());
 		}
-		if (index == sentenceSpec.size()) {
-			return probability;
+
+		public long getQueries() { return searchMicros.getCount(); }
+		public long getSearchMicrosP50() { return searchMicros.getQuantile(0.5); }
+		public long getSearchMicrosP99() { return searchMicros.getQuantile(0.99); }
+		public long getSearchMicrosMax() { return searchMicros.getMax(); }
+		public long getResolveMicrosP99() { return resolveMicros.getQuantile(0.99); }
+		public long getEdgesExaminedP99() { return edgesExamined.getQuantile(0.99); }
+		public long getNodesExpandedP99() { return nodesExpanded.getQuantile(0.99); }
+		public long getPeakFrontierP99() { return peakFrontier.getQuantile(0.99); }
+		public long getSequencesAllocatedP99() { return sequencesAllocated.getQuantile(0.99); }
+		public long getPrunedBranchesP99() { return prunedBranches.getQuantile(0.99); }
+		public synchronized String getSlowestQuery() { return slowestQuery; }
+
+		public void register(String name) throws JMException {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, SearchMetricsMBean.class), new ObjectName(name));
 		}
-		else {
-			double num = 0;
-			double denom = 0;
-			for (Edge edge : node.getEdges(sentenceSpec.get(index))) {
-				if (edge.getBeforePos().equals(sentenceSpec.get(index))) {
-					num += estimateProbability(edge.getNode(), sentenceSpec, index + 1, edge.getProbability());
-					denom++;
-				}
-			}
-			if (denom != 0) return (num/denom)*probability;
-			else return probability;
+
+		public String toString() {
+			return "Queries: " + getQueries()
+					+ "\nSearch us: " + searchMicros
+					+ "\nResolve us: " + resolveMicros
+					+ "\nEdges examined: " + edgesExamined
+					+ "\nNodes expanded: " + nodesExpanded
+					+ "\nPeak frontier: " + peakFrontier
+					+ "\nSequences allocated: " + sequencesAllocated
+					+ "\nPruned branches: " + prunedBranches
+					+ "\nSlowest: " + getSlowestQuery();
 		}
-		*/
 	}
-	
+
+	/*
+	 * graph - graph returned by load()
+	 * sentenceSpec - list of parts-of-speech shared by every query
+	 * startingWords - starting words, one sentence each
+	 * results - called with each starting word and its best sentence (null if there is none), in
+	 *           input order, as soon as it is read off
+	 */
+	public static void generateBatch(Graph graph, ArrayList<String> sentenceSpec, Iterable<String> startingWords,
+			BiConsumer<String, Result> results) {
+		Spec spec = new Spec(graph, sentenceSpec);
+		SuffixTable table = spec.isSatisfiable() ? new SuffixTable(graph, spec) : null;
+		for (String startingWord : startingWords) {
+			int root = graph.getWordId(startingWord);
+			Sequence best = table != null && root >= 0 ? table.getBest(graph, spec, root) : null;
+			results.accept(startingWord, best != null ? best.toResult(graph, spec, null) : null);
+		}
+	}
+
+	private static Result toResult(Graph graph, Spec spec, Sequence seq, SearchStats stats) {
+		return seq == null ? Result.notFound(stats) : seq.toResult(graph, spec, stats);
+	}
+
+	// Formats a result with both its linear and log probability, and the edges examined if the
+	// result has stats (batch results do not)
+	public static String format(Result result) {
+		String nodesConsidered = result.getStats() == null ? "" : "\nTotal nodes considered: " + result.getStats().getEdgesExamined();
+		if (!result.isFound()) {
+			return "No sentence found" + nodesConsidered;
+		}
+
+		DecimalFormat df = new DecimalFormat("0", DecimalFormatSymbols.getInstance(Locale.ENGLISH));
+		df.setMaximumFractionDigits(340);
+
+		return "\"" + result.getSentence() + "\" with probability " + df.format(result.getProbability())
+				+ " (log probability " + result.getLogProbability() + ")" + nodesConsidered;
+	}
+
+	// format() plus a note for strategies that may miss the best sentence, null for an unknown strategy
+	private static String format(Result result, String searchStrategy, SearchOptions options) {
+		if (result == null) {
+			return null;
+		}
+		String text = format(result);
+		SearchStats stats = result.getStats();
+		if (stats.getFloorPruned() > 0 || stats.getDegreePruned() > 0) {
+			String floor = options.getProbabilityFloors() != null ? Arrays.toString(options.getProbabilityFloors()) + " by position"
+					: String.valueOf(options.getProbabilityFloor());
+			String branching = options.getMaxBranchings() != null ? Arrays.toString(options.getMaxBranchings()) + " by position"
+					: String.valueOf(options.getMaxBranching());
+			text += "\nApproximate: pruned " + stats.getFloorPruned() + " edges below probability " + floor
+					+ ", " + stats.getDegreePruned() + " over " + branching + " per word";
+		}
+		return searchStrategy.equals("BEAM") ? text + "\nApproximate: beam width " + options.getBeamWidth() : text;
+	}
+
 	/*
 	 * startingWord - starting word
 	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
@@ -393,41 +3322,142 @@ public class Part3 {
 	 * graph - text of input.txt
 	 */
 	public static String generate(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, String graph) {
-		masterMap = new HashMap<String, Node>();
-		// Parse input
-		for (String line : graph.split("\n")) {
-			String[] parts = line.split("//");
-			String[] firstTag = parts[0].split("/");
-			String[] secondTag = parts[1].split("/");
-			double probability = Double.parseDouble(parts[2]);
-			
-			Node n1 = getNodeFromMaster(firstTag[0], sentenceSpec);
-			Node n2 = getNodeFromMaster(secondTag[0], sentenceSpec);
-			String pos1 = firstTag[1];
-			String pos2 = secondTag[1];
-			
-			if (sentenceSpec.contains(pos1) && sentenceSpec.contains(pos2)) {
-				n1.addEdge(pos1, pos2, n2, probability);
-			}
+		return generate(load(graph), startingWord, sentenceSpec, searchStrategy);
+	}
+
+	/*
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 * searchStrategy - search strategy
+	 */
+	public static String generate(Graph graph, String startingWord, ArrayList<String> sentenceSpec, String searchStrategy) {
+		return generate(graph, startingWord, sentenceSpec, searchStrategy, new SearchOptions());
+	}
+
+	/*
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 * searchStrategy - search strategy
+	 * options - per-request settings, i.e. the beam width for BEAM
+	 */
+	public static String generate(Graph graph, String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchOptions options) {
+		return format(generateResult(graph, startingWord, sentenceSpec, searchStrategy, options), searchStrategy, options);
+	}
+
+	/*
+	 * Same as generate(), without formatting
+	 *
+	 * graph - graph returned by load()
+	 * startingWord - starting word
+	 * sentenceSpec - list of parts-of-speech, i.e. ["NNP", "VBD", "DT", "NN"]
+	 * searchStrategy - search strategy
+	 * options - per-request settings, i.e. the beam width for BEAM
+	 * returns the best sentence found, or null for an unknown strategy
+	 * throws IllegalArgumentException for an end word with BEAM
+	 */
+	public static Result generateResult(Graph graph, String startingWord, ArrayList<String> sentenceSpec, String searchStrategy,
+			SearchOptions options) {
+		// Nothing outlives the query, so only MEMOIZED needs a cache, for the completions within it
+		CompletionCache cache = searchStrategy.equals("MEMOIZED") ? new CompletionCache(CompletionCache.DEFAULT_CAPACITY) : null;
+		return generateResult(graph, cache, null, null, startingWord, sentenceSpec, searchStrategy, options);
+	}
+
+	// Strategies generate() accepts
+	static final List<String> STRATEGIES = Arrays.asList("BREADTH_FIRST", "DEPTH_FIRST", "PARALLEL_DEPTH_FIRST", "BRANCH_AND_BOUND",
+			"HEURISTIC", "VITERBI", "BEAM", "MEMOIZED", "SAMPLE");
+
+	// Strategies that always find the best sentence, so an end word can be served by bidirectional() instead.
+	// SAMPLE draws among the sentences with the end word; the rest reject one.
+	static final List<String> EXACT_STRATEGIES = Arrays.asList("BREADTH_FIRST", "DEPTH_FIRST", "PARALLEL_DEPTH_FIRST", "BRANCH_AND_BOUND",
+			"HEURISTIC", "VITERBI", "MEMOIZED");
+
+	// cache - completions for MEMOIZED, null for the other strategies
+	// tables - suffix tables for HEURISTIC, null to use the per-tag-pair bounds
+	// samplers - samplers for SAMPLE, null to build one per query
+	// throws IllegalArgumentException for an end word with BEAM
+	private static Result generateResult(Graph graph, CompletionCache cache, TableCache<SuffixTable> tables, TableCache<Sampler> samplers,
+			String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, SearchOptions options) {
+		if (!STRATEGIES.contains(searchStrategy)) {
+			return null;
+		}
+		if (options.getEndWord() != null && !EXACT_STRATEGIES.contains(searchStrategy) && !searchStrategy.equals("SAMPLE")) {
+			throw new IllegalArgumentException(searchStrategy + " does not support an end word");
+		}
+		SearchStats stats = new SearchStats();
+		long start = System.nanoTime();
+		int root = graph.getWordId(startingWord);
+		Spec spec = new Spec(graph, sentenceSpec);
+		stats.resolveNanos = System.nanoTime() - start;
+		int endWord = options.getEndWord() == null ? -1 : graph.getWordId(options.getEndWord());
+		if (root < 0 || !spec.isSatisfiable() || (options.getEndWord() != null && endWord < 0)) {
+			return Result.notFound(stats);
 		}
+		start = System.nanoTime();
+		Result result = endWord >= 0 && EXACT_STRATEGIES.contains(searchStrategy) ? bidirectional(graph, root, endWord, spec, stats)
+				: search(graph, cache, tables, samplers, root, endWord, spec, searchStrategy, options, stats);
+		stats.searchNanos = System.nanoTime() - start;
+		return result;
+	}
 
-		if (searchStrategy == "BREADTH_FIRST") {
-			return bfs(getNodeFromMaster(startingWord, sentenceSpec), sentenceSpec);
+	// endWord - -1 unless the sentence must end with it; only SAMPLE gets here with one
+	private static Result search(Graph graph, CompletionCache cache, TableCache<SuffixTable> tables, TableCache<Sampler> samplers, int root,
+			int endWord, Spec spec, String searchStrategy, SearchOptions options, SearchStats stats) {
+		if (searchStrategy.equals("BREADTH_FIRST")) {
+			return bfs(graph, root, spec, options, stats);
+		}
+		if (searchStrategy.equals("DEPTH_FIRST")) {
+			return dfs(graph, root, spec, options, stats);
+		}
+		if (searchStrategy.equals("PARALLEL_DEPTH_FIRST")) {
+			return parallelDfs(graph, root, spec, stats);
+		}
+		if (searchStrategy.equals("BRANCH_AND_BOUND")) {
+			return branchAndBound(graph, root, spec, stats);
 		}
-		if (searchStrategy == "DEPTH_FIRST") {
-			return dfs(getNodeFromMaster(startingWord, sentenceSpec), sentenceSpec);
+		if (searchStrategy.equals("HEURISTIC")) {
+			return heuristic(graph, root, spec, options, tables != null ? SuffixTable.get(tables, graph, spec) : null, stats);
 		}
-		if (searchStrategy == "HEURISTIC") {
-			return heuristic(getNodeFromMaster(startingWord, sentenceSpec), sentenceSpec);
+		if (searchStrategy.equals("VITERBI")) {
+			return viterbi(graph, root, spec, stats);
+		}
+		if (searchStrategy.equals("BEAM")) {
+			return beam(graph, root, spec, options.getBeamWidth(), stats);
+		}
+		if (searchStrategy.equals("MEMOIZED")) {
+			return memoized(graph, root, spec, cache, stats);
+		}
+		if (searchStrategy.equals("SAMPLE")) {
+			Sampler sampler = samplers != null ? Sampler.get(samplers, graph, spec, endWord) : new Sampler(graph, spec, endWord);
+			return sample(graph, root, spec, sampler, options.getSeed(), stats);
 		}
 		return null;
 	}
 	
+	// Loads a bigram file, printing any malformed lines on System.err
+	private static Graph loadReporting(Path path) throws IOException {
+		GraphLoader loader = new GraphLoader().read(path);
+		loader.report(System.err);
+		return loader.build();
+	}
+
+	/*
+	 * Part3 [graph] - runs the examples against input.txt or the given bigram file or snapshot
+	 * Part3 -snapshot <bigram file> <snapshot> - compiles a bigram file into a snapshot
+	 */
 	public static void main(String[] args) {
 		try {
-			byte[] encoded = Files.readAllBytes(Paths.get("input.txt"));
-			String graph = new String(encoded, StandardCharsets.UTF_8);
-			String[] searchStrategies = { "BREADTH_FIRST", "DEPTH_FIRST", "HEURISTIC"};
+			if (args.length == 3 && args[0].equals("-snapshot")) {
+				Snapshot.write(loadReporting(Paths.get(args[1])), Paths.get(args[2]));
+				return;
+			}
+			Path path = Paths.get(args.length > 0 ? args[0] : "input.txt");
+			Engine engine = new Engine(Snapshot.isSnapshot(path) ? Snapshot.map(path) : loadReporting(path));
+			SearchMetrics metrics = new SearchMetrics();
+			engine.addMetricsListener(metrics);
+			metrics.register("Part3:type=SearchMetrics");
+			String[] searchStrategies = { "BREADTH_FIRST", "DEPTH_FIRST", "PARALLEL_DEPTH_FIRST", "BRANCH_AND_BOUND", "HEURISTIC", "VITERBI", "BEAM", "MEMOIZED"};
 			
 			for (String searchStrategy : searchStrategies) {
 				System.out.println(searchStrategy);
@@ -440,10 +3470,10 @@ public class Part3 {
 					add("DT");
 					add("NN");
 				}};
-				System.out.println(generate(startingWord, sentenceSpec, searchStrategy, graph));
+				System.out.println(engine.generate(startingWord, sentenceSpec, searchStrategy));
 
 				startingWord = "benjamin";
-				System.out.println(generate(startingWord, sentenceSpec, searchStrategy, graph));
+				System.out.println(engine.generate(startingWord, sentenceSpec, searchStrategy));
 
 				startingWord = "a";
 				sentenceSpec = new ArrayList<String>() {{
@@ -452,7 +3482,7 @@ public class Part3 {
 					add("VBD");
 					add("NNP");
 				}};
-				System.out.println(generate(startingWord, sentenceSpec, searchStrategy, graph));
+				System.out.println(engine.generate(startingWord, sentenceSpec, searchStrategy));
 
 				startingWord = "benjamin";
 				sentenceSpec = new ArrayList<String>() {{
@@ -462,7 +3492,7 @@ public class Part3 {
 					add("JJS");
 					add("NN");
 				}};
-				System.out.println(generate(startingWord, sentenceSpec, searchStrategy, graph));
+				System.out.println(engine.generate(startingWord, sentenceSpec, searchStrategy));
 
 				startingWord = "a";
 				sentenceSpec = new ArrayList<String>() {{
@@ -474,10 +3504,97 @@ public class Part3 {
 					add("DT");
 					add("NN");
 				}};
-				System.out.println(generate(startingWord, sentenceSpec, searchStrategy, graph));
+				System.out.println(engine.generate(startingWord, sentenceSpec, searchStrategy));
 				System.out.println();
 			}
-		} catch (IOException e) {
+			CompletionCache cache = engine.getCompletionCache();
+			System.out.println("Completion cache: " + cache.size() + " entries, " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+			System.out.println("Suffix table cache: " + engine.getSuffixTableCache().size() + " specs");
+			System.out.println();
+
+			System.out.println("TOP_K");
+			System.out.println("------------------");
+			ArrayList<String> sentenceSpec = new ArrayList<String>() {{
+				add("NNP");
+				add("VBD");
+				add("DT");
+				add("NN");
+			}};
+			for (Result result : engine.generateTopK("benjamin", sentenceSpec, 5)) {
+				System.out.println("\"" + result.getSentence() + "\" with log probability " + result.getLogProbability());
+			}
+			System.out.println();
+
+			System.out.println("SAMPLE");
+			System.out.println("------------------");
+			for (Result result : engine.generateSamples("benjamin", sentenceSpec, 5, 486)) {
+				System.out.println("\"" + result.getSentence() + "\" with log probability " + result.getLogProbability());
+			}
+			System.out.println();
+
+			System.out.println("END_WORD");
+			System.out.println("------------------");
+			ArrayList<String> longSpec = new ArrayList<String>(Arrays.asList("DT", "NN", "VBD", "NNP", "IN", "DT", "NN"));
+			for (String endWord : new String[] { "apple", "king", "nobody" }) {
+				System.out.println(engine.generate("a", longSpec, "HEURISTIC", new SearchOptions().setEndWord(endWord)));
+			}
+			System.out.println();
+
+			// Trading recall for speed on the high-degree "a"
+			System.out.println("PRUNING");
+			System.out.println("------------------");
+			SearchOptions pruning = new SearchOptions().setProbabilityFloor(0.002).setMaxBranching(20);
+			for (String searchStrategy : new String[] { "BREADTH_FIRST", "DEPTH_FIRST", "HEURISTIC" }) {
+				System.out.println(engine.generate("a", longSpec, searchStrategy, pruning));
+			}
+			// Only the high-degree first step is cut
+			System.out.println(engine.generate("a", longSpec, "DEPTH_FIRST", new SearchOptions().setMaxBranchings(20)));
+			System.out.println();
+
+			System.out.println("BATCH");
+			System.out.println("------------------");
+			generateBatch(engine.getGraph(), sentenceSpec, Arrays.asList("hans", "benjamin", "king", "thumbling", "nobody"),
+					new BiConsumer<String, Result>() {
+						public void accept(String startingWord, Result result) {
+							System.out.println(startingWord + ": " + (result == null ? "no sentence"
+									: "\"" + result.getSentence() + "\" with log probability " + result.getLogProbability()));
+						}
+					});
+			System.out.println();
+
+			// The same engine serving queries from several threads at once
+			System.out.println("CONCURRENT");
+			System.out.println("------------------");
+			ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			ArrayList<Future<String>> futures = new ArrayList<Future<String>>();
+			for (final String startingWord : new String[] { "hans", "benjamin", "king", "thumbling" }) {
+				futures.add(executor.submit(new Callable<String>() {
+					public String call() {
+						return engine.generate(startingWord, sentenceSpec, "HEURISTIC");
+					}
+				}));
+			}
+			for (Future<String> future : futures) {
+				System.out.println(future.get());
+			}
+			executor.shutdown();
+			System.out.println();
+
+			// Drop "the apple" and add a new word; only cached completions that could reach "the" are dropped
+			System.out.println("DELTA");
+			System.out.println("------------------");
+			GraphDelta delta = GraphDelta.parse("the/DT//apple/NN//0\nthe/DT//dragon/NN//0.5\n");
+			delta.getLoader().report(System.err);
+			System.out.println("Dropped completions of " + engine.apply(delta) + " words, "
+					+ engine.getCompletionCache().size() + " cache entries kept");
+			System.out.println(engine.generate("benjamin", sentenceSpec, "MEMOIZED"));
+			System.out.println(engine.generate("benjamin", sentenceSpec, "HEURISTIC"));
+			System.out.println();
+
+			System.out.println("METRICS");
+			System.out.println("------------------");
+			System.out.println(metrics);
+		} catch (IOException | InterruptedException | ExecutionException | JMException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
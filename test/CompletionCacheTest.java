@@ -0,0 +1,78 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class CompletionCacheTest {
+	static final int[] TAGS = { 1, 2 };
+
+	static Part3.CompletionKey key(int word) {
+		return new Part3.CompletionKey(word, TAGS);
+	}
+
+	@Test
+	void countsHitsAndMisses() {
+		Part3.CompletionCache cache = new Part3.CompletionCache(100);
+		assertNull(cache.get(key(1)));
+		cache.put(key(1), Part3.Completion.END);
+		assertSame(Part3.Completion.END, cache.get(key(1)));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	void staysWithinCapacity() {
+		for (int capacity : new int[] { 1, 5, 100, 1000 }) {
+			Part3.CompletionCache cache = new Part3.CompletionCache(capacity);
+			for (int word = 0; word < 10 * capacity; word++) {
+				cache.put(key(word), Part3.Completion.END);
+			}
+			int segments = Math.min(Part3.CompletionCache.SEGMENTS, Integer.highestOneBit(capacity));
+			assertTrue(cache.size() <= (capacity + segments - 1) / segments * segments, "capacity " + capacity + ", size " + cache.size());
+			assertTrue(cache.size() > 0);
+		}
+	}
+
+	@Test
+	void copyWithoutDropsOnlyThoseWords() {
+		Part3.CompletionCache cache = new Part3.CompletionCache(1000);
+		boolean[] dropped = new boolean[100];
+		for (int word = 0; word < 100; word++) {
+			cache.put(key(word), Part3.Completion.END);
+			dropped[word] = word % 3 == 0;
+		}
+		Part3.CompletionCache copy = cache.copyWithout(dropped);
+		assertEquals(66, copy.size());
+		for (int word = 0; word < 100; word++) {
+			assertEquals(!dropped[word], copy.get(key(word)) != null);
+		}
+		assertEquals(100, cache.size());
+	}
+
+	@Test
+	void concurrentQueriesMatchSequential() throws Exception {
+		final Part3.Engine engine = new Part3.Engine(TestGraphs.synthetic(), 500);
+		final ArrayList<String> sentenceSpec = TestGraphs.spec("T0", "T1", "T2", "T0", "T1");
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			ArrayList<Future<String>> results = new ArrayList<Future<String>>();
+			for (int word = 0; word < 200; word++) {
+				final String startingWord = "w" + word;
+				results.add(executor.submit(() -> engine.generate(startingWord, sentenceSpec, "MEMOIZED")));
+			}
+			for (int word = 0; word < 200; word++) {
+				String expected = Part3.generate(engine.getGraph(), "w" + word, sentenceSpec, "VITERBI");
+				assertEquals(expected.split("\n")[0], results.get(word).get().split("\n")[0]);
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+}
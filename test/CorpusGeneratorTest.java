@@ -0,0 +1,56 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+class CorpusGeneratorTest {
+	// Source tags of every word
+	static Map<String, Set<String>> sourceTags(String text) {
+		Map<String, Set<String>> tags = new HashMap<String, Set<String>>();
+		for (String line : text.split("\n")) {
+			String source = line.substring(0, line.indexOf("//"));
+			int slash = source.lastIndexOf('/');
+			tags.computeIfAbsent(source.substring(0, slash), word -> new HashSet<String>()).add(source.substring(slash + 1));
+		}
+		return tags;
+	}
+
+	@Test
+	void oneTagPerWordByDefault() {
+		for (Set<String> tags : sourceTags(CorpusGenerator.generate(new CorpusGenerator.Settings().setVocabulary(2000).setEdges(20000))).values()) {
+			assertEquals(1, tags.size());
+		}
+	}
+
+	@Test
+	void ambiguityGivesWordsSeveralTags() {
+		CorpusGenerator.Settings settings = new CorpusGenerator.Settings().setVocabulary(3000).setEdges(30000).setAmbiguity(0.15);
+		String text = CorpusGenerator.generate(settings);
+		assertEquals(text, CorpusGenerator.generate(settings));
+		Map<String, Set<String>> tags = sourceTags(text);
+		int ambiguous = 0;
+		for (Set<String> wordTags : tags.values()) {
+			ambiguous += wordTags.size() > 1 ? 1 : 0;
+		}
+		double share = ambiguous / (double) tags.size();
+		assertTrue(share > 0.08 && share < 0.15, "share " + share);
+
+		// Every tag of a word starts edges in the loaded graph
+		Part3.Graph graph = Part3.load(text);
+		for (Map.Entry<String, Set<String>> entry : tags.entrySet()) {
+			int word = graph.getWordId(entry.getKey());
+			for (String tag : entry.getValue()) {
+				boolean found = false;
+				for (int to = 0; to < graph.getTagCount(); to++) {
+					found |= graph.getBucket(word, graph.getTagId(tag), to) >= 0;
+				}
+				assertTrue(found, entry.getKey() + "/" + tag);
+			}
+		}
+	}
+}
@@ -0,0 +1,164 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * A graph with a delta applied against the same edges loaded from scratch.
+ */
+class GraphDeltaTest {
+	// word/TAG//word/TAG -> log-probability of every edge, checking each bucket is sorted best first
+	static TreeMap<String, Double> edges(Part3.Graph graph) {
+		TreeMap<String, Double> edges = new TreeMap<String, Double>();
+		for (int word = 0; word < graph.size(); word++) {
+			for (int b = graph.getBucketStart(word); b < graph.getBucketStart(word + 1); b++) {
+				int key = graph.getBucketKey(b);
+				double previous = Double.POSITIVE_INFINITY;
+				for (int e = graph.getEdgeStart(b); e < graph.getEdgeEnd(b); e++) {
+					assertTrue(graph.getLogProbability(e) <= previous);
+					previous = graph.getLogProbability(e);
+					edges.put(graph.getWord(word) + "/" + graph.getTag(key / graph.getTagCount()) + "//" + graph.getWord(graph.getTarget(e))
+							+ "/" + graph.getTag(key % graph.getTagCount()), graph.getLogProbability(e));
+				}
+			}
+		}
+		return edges;
+	}
+
+	@Test
+	void matchesRebuild() {
+		String text = CorpusGenerator.generate(new CorpusGenerator.Settings().setVocabulary(300).setEdges(3000).setTagCount(5));
+		LinkedHashMap<String, String> lines = new LinkedHashMap<String, String>();
+		for (String line : text.split("\n")) {
+			int split = line.lastIndexOf("//");
+			lines.put(line.substring(0, split), line.substring(split + 2));
+		}
+		ArrayList<String> keys = new ArrayList<String>(lines.keySet());
+		Random random = new Random(1);
+		StringBuilder delta = new StringBuilder();
+		// Reweights and removals of existing edges
+		for (int i = 0; i < 200; i++) {
+			String key = keys.get(random.nextInt(keys.size()));
+			double probability = random.nextInt(3) == 0 ? 0 : random.nextDouble();
+			delta.append(key).append("//").append(probability).append("\n");
+			if (probability == 0) {
+				lines.remove(key);
+			}
+			else {
+				lines.put(key, String.valueOf(probability));
+			}
+		}
+		// New edges, including new words and tags
+		for (int i = 0; i < 50; i++) {
+			String key = "w" + random.nextInt(350) + "/" + (random.nextBoolean() ? "T" + random.nextInt(5) : "NEW" + random.nextInt(2))
+					+ "//w" + random.nextInt(350) + "/T" + random.nextInt(6);
+			double probability = random.nextDouble();
+			delta.append(key).append("//").append(probability).append("\n");
+			lines.put(key, String.valueOf(probability));
+		}
+		StringBuilder full = new StringBuilder();
+		for (Map.Entry<String, String> line : lines.entrySet()) {
+			full.append(line.getKey()).append("//").append(line.getValue()).append("\n");
+		}
+
+		Part3.GraphDelta parsed = Part3.GraphDelta.parse(delta.toString());
+		assertEquals(0, parsed.getLoader().getMalformedLines());
+		Part3.Graph applied = parsed.applyTo(Part3.load(text));
+		Part3.Graph rebuilt = Part3.load(full.toString());
+		assertEquals(edges(rebuilt), edges(applied));
+		assertEquals(rebuilt.getEdgeCount(), applied.getEdgeCount());
+		for (int key = 0; key < applied.getTagCount() * applied.getTagCount(); key++) {
+			String pos1 = applied.getTag(key / applied.getTagCount());
+			String pos2 = applied.getTag(key % applied.getTagCount());
+			assertEquals(rebuilt.getMaxLogProbability(rebuilt.getTagId(pos1), rebuilt.getTagId(pos2)), applied.getMaxLogProbability(key), 0, pos1 + " " + pos2);
+		}
+	}
+
+	@Test
+	void engineKeepsOnlyUnaffectedCompletions() {
+		Part3.Engine engine = new Part3.Engine(TestGraphs.synthetic());
+		ArrayList<String> sentenceSpec = TestGraphs.spec("T0", "T1", "T2", "T0", "T1");
+		for (int word = 0; word < 200; word++) {
+			engine.generate("w" + word, sentenceSpec, "MEMOIZED");
+		}
+		int cached = engine.getCompletionCache().size();
+
+		// A new word that nothing reaches only drops its own completions
+		assertEquals(1, engine.apply(Part3.GraphDelta.parse("fresh/T0//w1/T1//0.5\n")));
+		assertEquals(cached, engine.getCompletionCache().size());
+		assertMemoizedMatchesViterbi(engine, sentenceSpec);
+
+		// Cutting the best edge of w0 drops the completions of every word that can reach it
+		Part3.Graph graph = engine.getGraph();
+		int b = graph.getBucketStart(0);
+		int key = graph.getBucketKey(b);
+		String edge = "w0/" + graph.getTag(key / graph.getTagCount()) + "//" + graph.getWord(graph.getTarget(graph.getEdgeStart(b)))
+				+ "/" + graph.getTag(key % graph.getTagCount());
+		int dropped = engine.apply(Part3.GraphDelta.parse(edge + "//0\n"));
+		assertTrue(dropped > 1, "dropped " + dropped);
+		assertTrue(engine.getCompletionCache().size() < cached);
+		assertMemoizedMatchesViterbi(engine, sentenceSpec);
+	}
+
+	@Test
+	void engineKeepsTablesOfUnaffectedSpecs() {
+		Part3.Engine engine = new Part3.Engine(TestGraphs.synthetic());
+		ArrayList<String> first = TestGraphs.spec("T0", "T1", "T0", "T1");
+		ArrayList<String> second = TestGraphs.spec("T2", "T2", "T1");
+		for (ArrayList<String> sentenceSpec : Arrays.asList(first, second)) {
+			engine.generate("w0", sentenceSpec, "HEURISTIC");
+			engine.generateSamples("w0", sentenceSpec, 10, 5);
+		}
+		Part3.SuffixTable table = engine.getSuffixTableCache().get(first, null);
+		assertEquals(2, engine.getSuffixTableCache().size());
+		assertEquals(2, engine.getSamplerCache().size());
+
+		// Neither spec reads T0/T2, so both keep their tables
+		engine.apply(Part3.GraphDelta.parse("w1/T0//w2/T2//0.9\nfresh/T0//w3/T2//0.5\n"));
+		assertEquals(2, engine.getSuffixTableCache().size());
+		assertEquals(2, engine.getSamplerCache().size());
+		assertSame(table, engine.getSuffixTableCache().get(first, null));
+		assertMatchesFreshEngine(engine, first, second);
+
+		// A T2/T2 edge only affects the second spec
+		engine.apply(Part3.GraphDelta.parse("w4/T2//w5/T2//0.7\n"));
+		assertEquals(1, engine.getSuffixTableCache().size());
+		assertEquals(1, engine.getSamplerCache().size());
+		assertSame(table, engine.getSuffixTableCache().get(first, null));
+		assertMatchesFreshEngine(engine, first, second);
+	}
+
+	static void assertMatchesFreshEngine(Part3.Engine engine, ArrayList<String> first, ArrayList<String> second) {
+		Part3.Engine fresh = new Part3.Engine(engine.getGraph());
+		for (ArrayList<String> sentenceSpec : Arrays.asList(first, second)) {
+			for (int word = 0; word < 100; word++) {
+				String expected = fresh.generate("w" + word, sentenceSpec, "HEURISTIC").split("\n")[0];
+				assertEquals(expected, engine.generate("w" + word, sentenceSpec, "HEURISTIC").split("\n")[0], "w" + word + " " + sentenceSpec);
+			}
+			ArrayList<String> expected = new ArrayList<String>();
+			for (Part3.Result result : fresh.generateSamples("w0", sentenceSpec, 50, 9)) {
+				expected.add(result.getSentence());
+			}
+			ArrayList<String> actual = new ArrayList<String>();
+			for (Part3.Result result : engine.generateSamples("w0", sentenceSpec, 50, 9)) {
+				actual.add(result.getSentence());
+			}
+			assertEquals(expected, actual, sentenceSpec.toString());
+		}
+	}
+
+	static void assertMemoizedMatchesViterbi(Part3.Engine engine, ArrayList<String> sentenceSpec) {
+		for (int word = 0; word < 200; word++) {
+			String expected = Part3.generate(engine.getGraph(), "w" + word, sentenceSpec, "VITERBI").split("\n")[0];
+			assertEquals(expected, engine.generate("w" + word, sentenceSpec, "MEMOIZED").split("\n")[0], "w" + word);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * GraphLoader's line splitting and error reporting, from strings and from files larger than its
+ * buffer.
+ */
+class GraphLoaderTest {
+	@TempDir
+	Path directory;
+
+	// Probability of the edge word/TAG//word/TAG in graph, 0 if there is none
+	static double probability(Part3.Graph graph, String word, String pos1, String target, String pos2) {
+		int source = graph.getWordId(word);
+		if (source < 0 || graph.getTagId(pos1) < 0 || graph.getTagId(pos2) < 0) {
+			return 0;
+		}
+		int bucket = graph.getBucket(source, graph.getTagId(pos1), graph.getTagId(pos2));
+		for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+			if (graph.getWord(graph.getTarget(e)).equals(target)) {
+				return graph.getProbability(e);
+			}
+		}
+		return 0;
+	}
+
+	// A line for the edge word/DT//target/NN padded with a long word so it is exactly length bytes
+	static String line(String target, int length) {
+		String rest = "/DT//" + target + "/NN//0.5\n";
+		char[] word = new char[length - rest.length()];
+		Arrays.fill(word, 'x');
+		return new String(word) + rest;
+	}
+
+	@Test
+	void reportsMalformedLinesWithTheirNumbers() {
+		Part3.GraphLoader loader = new Part3.GraphLoader().read("a/DT//b/NN//0.5\n"
+				+ "no separators\n"
+				+ "\n"
+				+ "a/DT//b//0.5\n"
+				+ "a/DT//c/NN//x\n"
+				+ "a/DT//d/NN//1.5\n"
+				+ "a/DT//e/NN//0\n"
+				+ "b/NN//c/VB//0.25");
+		assertEquals(5, loader.getMalformedLines());
+		assertEquals(Arrays.asList("line 2: expected word/TAG//word/TAG//prob", "line 4: expected word/TAG on both sides", "line 5: bad probability",
+				"line 6: probability out of range: 1.5", "line 7: probability out of range: 0.0"), loader.getErrors());
+		Part3.Graph graph = loader.build();
+		assertEquals(2, graph.getEdgeCount());
+		assertEquals(0.25, probability(graph, "b", "NN", "c", "VB"), 1e-12);
+
+		// A delta reads 0 as a removal instead
+		assertEquals(1, new Part3.GraphLoader(true).read("a/DT//e/NN//0\nbad\n").getMalformedLines());
+	}
+
+	@Test
+	void acceptsCrLf() {
+		Part3.GraphLoader loader = new Part3.GraphLoader().read("a/DT//b/NN//0.5\r\nb/NN//c/VB//0.25\r\n\r\nc/VB//a/DT//1\r\n");
+		assertEquals(0, loader.getMalformedLines());
+		Part3.Graph graph = loader.build();
+		assertEquals(3, graph.getEdgeCount());
+		assertEquals(Arrays.asList(0, 1, 2), Arrays.asList(graph.getTagId("DT"), graph.getTagId("NN"), graph.getTagId("VB")));
+		assertEquals(0.5, probability(graph, "a", "DT", "b", "NN"), 1e-12);
+		assertEquals(1, probability(graph, "c", "VB", "a", "DT"), 1e-12);
+	}
+
+	@Test
+	void readsLinesAcrossTheBufferBoundary() throws IOException {
+		for (int offset : new int[] { -1, 0, 1, 17 }) {
+			// Filler edges up to a line straddling the end of the first buffer at offset, then one more
+			StringBuilder text = new StringBuilder();
+			int count = 0;
+			while (text.length() < Part3.GraphLoader.BUFFER_SIZE - 100) {
+				text.append("w").append(count).append("/DT//v").append(count).append("/NN//0.5\n");
+				count++;
+			}
+			text.append(line("pad", Part3.GraphLoader.BUFFER_SIZE - 40 - text.length()));
+			text.append(line("straddle", 40 + offset));
+			text.append("last/NN//first/DT//0.75");
+			Path path = directory.resolve("straddle" + offset + ".txt");
+			Files.write(path, text.toString().getBytes(StandardCharsets.US_ASCII));
+
+			Part3.GraphLoader loader = new Part3.GraphLoader().read(path);
+			assertEquals(0, loader.getMalformedLines(), "offset " + offset + ": " + loader.getErrors());
+			Part3.Graph graph = loader.build();
+			assertEquals(count + 3, graph.getEdgeCount());
+			String word = line("straddle", 40 + offset);
+			assertEquals(0.5, probability(graph, word.substring(0, word.indexOf('/')), "DT", "straddle", "NN"), 1e-12, "offset " + offset);
+			assertEquals(0.75, probability(graph, "last", "NN", "first", "DT"), 1e-12);
+		}
+	}
+
+	@Test
+	void skipsOverlongLines() throws IOException {
+		String text = "a/DT//b/NN//0.5\n"
+				+ line("long", Part3.GraphLoader.BUFFER_SIZE * 2 + 5)
+				+ "b/NN//c/VB//0.25\n"
+				+ "bad\n"
+				+ line("tail", Part3.GraphLoader.BUFFER_SIZE + 2).trim();
+		Path path = directory.resolve("long.txt");
+		Files.write(path, text.getBytes(StandardCharsets.US_ASCII));
+		for (Part3.GraphLoader loader : new Part3.GraphLoader[] { new Part3.GraphLoader().read(path), new Part3.GraphLoader().read(text) }) {
+			assertEquals(3, loader.getMalformedLines());
+			assertEquals(Arrays.asList("line 2: line longer than " + Part3.GraphLoader.BUFFER_SIZE + " bytes", "line 4: expected word/TAG//word/TAG//prob",
+					"line 5: line longer than " + Part3.GraphLoader.BUFFER_SIZE + " bytes"), loader.getErrors());
+			Part3.Graph graph = loader.build();
+			assertEquals(2, graph.getEdgeCount());
+			assertEquals(0.25, probability(graph, "b", "NN", "c", "VB"), 1e-12);
+			assertTrue(graph.getWordId("long") < 0);
+		}
+	}
+}
@@ -0,0 +1,52 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+/*
+ * Part1's breadth first search against Part3's on input.txt.
+ */
+class Part1Test {
+	static String text;
+	static Part1.Graph graph;
+
+	@BeforeAll
+	static void load() throws IOException {
+		text = new String(Files.readAllBytes(Paths.get("src/input.txt")), StandardCharsets.UTF_8);
+		graph = Part1.load(text);
+	}
+
+	static ArrayList<String> spec(String... tags) {
+		return new ArrayList<String>(Arrays.asList(tags));
+	}
+
+	@Test
+	void matchesPart3() {
+		Part3.Graph part3 = Part3.load(text);
+		String[][] queries = {
+			{ "hans", "NNP", "VBD", "DT", "NN" },
+			{ "a", "DT", "NN", "VBD", "NNP" },
+			{ "a", "DT", "NN", "VBD", "NNP", "IN", "DT", "NN" },
+		};
+		for (String[] query : queries) {
+			ArrayList<String> sentenceSpec = spec(Arrays.copyOfRange(query, 1, query.length));
+			String expected = Part3.generate(part3, query[0], sentenceSpec, "BREADTH_FIRST").split("\n")[0];
+			assertEquals(expected, Part1.generate(graph, query[0], sentenceSpec).split("\n")[0]);
+		}
+	}
+
+	@Test
+	void noSentence() {
+		assertTrue(Part1.generate(graph, "zzqq", spec("NNP", "VBD")).startsWith("No sentence found"));
+		assertTrue(Part1.generate(graph, "a", spec("DT", "ZZ")).startsWith("No sentence found"));
+		assertTrue(Part1.generate(graph, "a", spec()).startsWith("No sentence found"));
+	}
+}
@@ -0,0 +1,96 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * generateSamples() against the exact distribution over every sentence of a template.
+ */
+class SamplerTest {
+	static final Part3.Graph input = TestGraphs.input();
+
+	/*
+	 * Total variation distance between the sample frequencies and the normalized sentence
+	 * probabilities. Sampling noise alone gives about sqrt(2 * sentences / (pi * count)) / 2, so
+	 * anything over sqrt(sentences / count) is a biased sampler.
+	 */
+	static void assertDistribution(String startingWord, String... tags) {
+		ArrayList<String> sentenceSpec = TestGraphs.spec(tags);
+		Map<String, Double> exact = new HashMap<String, Double>();
+		double total = 0;
+		for (Part3.Result result : Part3.generateTopK(input, startingWord, sentenceSpec, TestGraphs.ALL)) {
+			exact.put(result.getSentence(), result.getProbability());
+			total += result.getProbability();
+		}
+		int count = 200000;
+		Map<String, Integer> drawn = new HashMap<String, Integer>();
+		for (Part3.Result result : Part3.generateSamples(input, startingWord, sentenceSpec, count, 7)) {
+			drawn.merge(result.getSentence(), 1, Integer::sum);
+		}
+		double distance = 0;
+		for (Map.Entry<String, Double> entry : exact.entrySet()) {
+			Integer n = drawn.get(entry.getKey());
+			distance += Math.abs(entry.getValue() / total - (n == null ? 0 : n) / (double) count);
+		}
+		for (Map.Entry<String, Integer> entry : drawn.entrySet()) {
+			assertTrue(exact.containsKey(entry.getKey()), entry.getKey());
+		}
+		distance /= 2;
+		double limit = Math.sqrt(exact.size() / (double) count);
+		assertTrue(distance < limit, startingWord + " " + sentenceSpec + ": distance " + distance + ", limit " + limit);
+	}
+
+	@Test
+	void matchesExactDistribution() {
+		assertDistribution("benjamin", "NNP", "VBD", "DT", "NN");
+		assertDistribution("a", "DT", "NN", "VBD", "NNP");
+		assertDistribution("benjamin", "NNP", "VBD", "DT", "JJS", "NN");
+	}
+
+	@Test
+	void endWordMatchesExactDistribution() {
+		ArrayList<String> sentenceSpec = TestGraphs.spec("DT", "NN", "VBD", "NNP", "IN", "DT", "NN");
+		Map<String, Double> exact = new HashMap<String, Double>();
+		double total = 0;
+		for (Part3.Result result : Part3.generateTopK(input, "a", sentenceSpec, TestGraphs.ALL)) {
+			if (result.getWords().get(result.getWords().size() - 1).equals("king")) {
+				exact.put(result.getSentence(), result.getProbability());
+				total += result.getProbability();
+			}
+		}
+		assertTrue(exact.size() > 1);
+
+		Part3.Engine engine = new Part3.Engine(input);
+		int count = 50000;
+		Map<String, Integer> drawn = new HashMap<String, Integer>();
+		for (int seed = 0; seed < count; seed++) {
+			Part3.SearchOptions options = new Part3.SearchOptions().setEndWord("king").setSeed(seed);
+			drawn.merge(engine.generateResult("a", sentenceSpec, "SAMPLE", options).getSentence(), 1, Integer::sum);
+		}
+		double distance = 0;
+		for (Map.Entry<String, Double> entry : exact.entrySet()) {
+			Integer n = drawn.get(entry.getKey());
+			distance += Math.abs(entry.getValue() / total - (n == null ? 0 : n) / (double) count);
+		}
+		for (String sentence : drawn.keySet()) {
+			assertTrue(exact.containsKey(sentence), sentence);
+		}
+		assertTrue(distance / 2 < Math.sqrt(exact.size() / (double) count), "distance " + distance / 2);
+		assertEquals(1, engine.getSamplerCache().size());
+	}
+
+	@Test
+	void sameSeedSameSentences() {
+		ArrayList<String> sentenceSpec = TestGraphs.spec("NNP", "VBD", "DT", "NN");
+		ArrayList<Part3.Result> first = Part3.generateSamples(input, "benjamin", sentenceSpec, 50, 486);
+		ArrayList<Part3.Result> second = Part3.generateSamples(input, "benjamin", sentenceSpec, 50, 486);
+		assertEquals(50, first.size());
+		for (int i = 0; i < first.size(); i++) {
+			assertEquals(first.get(i).getSentence(), second.get(i).getSentence());
+		}
+	}
+}
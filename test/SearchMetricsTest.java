@@ -0,0 +1,126 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Histogram quantiles, Engine listener calls and SearchMetrics' slowest query.
+ */
+class SearchMetricsTest {
+	// Every call an Engine makes to its listeners
+	static class Recorder implements Part3.MetricsListener {
+		final ArrayList<String> queries = new ArrayList<String>();
+		final ArrayList<Part3.SearchStats> stats = new ArrayList<Part3.SearchStats>();
+
+		public void onQuery(String startingWord, ArrayList<String> sentenceSpec, String searchStrategy, Part3.SearchStats stats) {
+			queries.add(searchStrategy + " " + startingWord + " " + sentenceSpec);
+			this.stats.add(stats);
+		}
+	}
+
+	static Part3.SearchStats stats(long searchNanos, long edgesExamined) {
+		Part3.SearchStats stats = new Part3.SearchStats();
+		stats.searchNanos = searchNanos;
+		stats.edgesExamined = edgesExamined;
+		return stats;
+	}
+
+	@Test
+	void histogramBucketsByPowerOfTwo() {
+		Part3.Histogram empty = new Part3.Histogram();
+		assertEquals(0, empty.getQuantile(0.5));
+		assertEquals(0, empty.getCount());
+
+		Part3.Histogram histogram = new Part3.Histogram();
+		for (int i = 0; i < 50; i++) {
+			histogram.record(0);
+		}
+		for (int i = 0; i < 49; i++) {
+			histogram.record(1000);
+		}
+		histogram.record(Long.MAX_VALUE);
+		assertEquals(100, histogram.getCount());
+		assertEquals(0, histogram.getQuantile(0.5));
+		assertEquals(1023, histogram.getQuantile(0.99));
+		assertEquals(Long.MAX_VALUE, histogram.getQuantile(1));
+		assertEquals(Long.MAX_VALUE, histogram.getMax());
+
+		// 1 is alone in its bucket, then each bucket ends at 2^i - 1
+		Part3.Histogram small = new Part3.Histogram();
+		small.record(1);
+		small.record(2);
+		small.record(5);
+		assertEquals(1, small.getQuantile(0.3));
+		assertEquals(3, small.getQuantile(0.6));
+		assertEquals(5, small.getQuantile(1));
+	}
+
+	@Test
+	void quantilesAreWithinAFactorOfTwo() {
+		Random random = new Random(18);
+		for (int i = 0; i < 1000; i++) {
+			long value = 1 + (random.nextLong() >>> (3 + random.nextInt(61)));
+			Part3.Histogram histogram = new Part3.Histogram();
+			histogram.record(value);
+			histogram.record(2 * value + 1);
+			long median = histogram.getQuantile(0.5);
+			assertTrue(median >= value && median / 2 < value, value + " -> " + median);
+		}
+	}
+
+	@Test
+	void engineNotifiesListeners() {
+		Part3.Engine engine = new Part3.Engine(TestGraphs.input());
+		Recorder recorder = new Recorder();
+		engine.addMetricsListener(recorder);
+		ArrayList<String> sentenceSpec = TestGraphs.spec("NNP", "VBD", "DT", "NN");
+
+		Part3.Result result = engine.generateResult("benjamin", sentenceSpec, "VITERBI", new Part3.SearchOptions());
+		assertEquals("VITERBI benjamin [NNP, VBD, DT, NN]", recorder.queries.get(0));
+		assertSame(result.getStats(), recorder.stats.get(0));
+
+		engine.generateTopK("benjamin", sentenceSpec, 5);
+		assertEquals("TOP_K benjamin [NNP, VBD, DT, NN]", recorder.queries.get(1));
+		assertTrue(recorder.stats.get(1).getEdgesExamined() > 0);
+
+		// One call for the whole batch of draws
+		engine.generateSamples("benjamin", sentenceSpec, 100, 7);
+		assertEquals("SAMPLE benjamin [NNP, VBD, DT, NN]", recorder.queries.get(2));
+		assertEquals(3, recorder.queries.size());
+
+		// Unknown strategies are not queries
+		assertNull(engine.generateResult("benjamin", sentenceSpec, "BOGUS", new Part3.SearchOptions()));
+		assertEquals(3, recorder.queries.size());
+
+		engine.removeMetricsListener(recorder);
+		engine.generate("benjamin", sentenceSpec, "VITERBI");
+		assertEquals(3, recorder.queries.size());
+	}
+
+	@Test
+	void tracksTheSlowestQuery() {
+		Part3.SearchMetrics metrics = new Part3.SearchMetrics();
+		assertEquals("", metrics.getSlowestQuery());
+		metrics.onQuery("a", TestGraphs.spec("DT", "NN"), "VITERBI", stats(5000, 10));
+		metrics.onQuery("b", TestGraphs.spec("NN", "VBD"), "BEAM", stats(90000, 300));
+		metrics.onQuery("c", TestGraphs.spec("DT", "NN"), "HEURISTIC", stats(20000, 20));
+		assertEquals(3, metrics.getQueries());
+		assertEquals(90, metrics.getSearchMicrosMax());
+		assertTrue(metrics.getSlowestQuery().startsWith("BEAM b [NN, VBD]: edges examined 300,"), metrics.getSlowestQuery());
+		assertEquals(300, metrics.getEdgesExaminedP99()); // bucket [256, 512), capped at the max
+
+		// Fed by an Engine
+		Part3.Engine engine = new Part3.Engine(TestGraphs.input());
+		Part3.SearchMetrics fed = new Part3.SearchMetrics();
+		engine.addMetricsListener(fed);
+		engine.generate("benjamin", TestGraphs.spec("NNP", "VBD", "DT", "NN"), "BREADTH_FIRST");
+		engine.generate("a", TestGraphs.spec("DT", "NN", "VBD", "NNP"), "VITERBI");
+		assertEquals(2, fed.getQueries());
+		assertTrue(fed.getSlowestQuery().startsWith("BREADTH_FIRST benjamin") || fed.getSlowestQuery().startsWith("VITERBI a"));
+	}
+}
@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * Every exact strategy against exhaustive enumeration with generateTopK(), on input.txt and on a
+ * synthetic graph.
+ */
+class SearchTest {
+	static final String[] EXACT = { "BREADTH_FIRST", "DEPTH_FIRST", "PARALLEL_DEPTH_FIRST", "BRANCH_AND_BOUND", "HEURISTIC", "VITERBI", "MEMOIZED" };
+
+	static final Part3.Graph input = TestGraphs.input();
+
+	static ArrayList<String> spec(String... tags) {
+		return TestGraphs.spec(tags);
+	}
+
+	// Best log-probability by enumerating every sentence, -Infinity if there is none
+	static double enumerated(Part3.Graph graph, String startingWord, ArrayList<String> sentenceSpec) {
+		ArrayList<Part3.Result> all = Part3.generateTopK(graph, startingWord, sentenceSpec, TestGraphs.ALL);
+		return all.isEmpty() ? Double.NEGATIVE_INFINITY : all.get(0).getLogProbability();
+	}
+
+	static void assertExact(Part3.Graph graph, String startingWord, ArrayList<String> sentenceSpec) {
+		double expected = enumerated(graph, startingWord, sentenceSpec);
+		for (String strategy : EXACT) {
+			Part3.Result result = Part3.generateResult(graph, startingWord, sentenceSpec, strategy, new Part3.SearchOptions());
+			assertEquals(expected, result.getLogProbability(), 1e-9, strategy + " " + startingWord + " " + sentenceSpec);
+			assertEquals(sentenceSpec.size(), result.isFound() ? result.getWords().size() : sentenceSpec.size());
+		}
+	}
+
+	@Test
+	void exactStrategiesMatchEnumerationOnInput() {
+		assertExact(input, "hans", spec("NNP", "VBD", "DT", "NN"));
+		assertExact(input, "benjamin", spec("NNP", "VBD", "DT", "NN"));
+		assertExact(input, "a", spec("DT", "NN", "VBD", "NNP"));
+		assertExact(input, "benjamin", spec("NNP", "VBD", "DT", "JJS", "NN"));
+		assertExact(input, "a", spec("DT", "NN", "VBD", "NNP", "IN", "DT", "NN"));
+	}
+
+	@Test
+	void exactStrategiesMatchEnumerationOnSyntheticGraph() {
+		Part3.Graph graph = TestGraphs.synthetic();
+		for (int word = 0; word < 40; word++) {
+			assertExact(graph, "w" + word, spec("T0", "T1", "T2", "T0", "T1"));
+			assertExact(graph, "w" + word, spec("T2", "T2", "T1", "T0"));
+			assertExact(graph, "w" + word, spec("T1", "T0", "T2"));
+			assertExact(graph, "w" + word, spec("T0", "T1"));
+		}
+	}
+
+	@Test
+	void beamNeverBeatsExact() {
+		ArrayList<String> sentenceSpec = spec("DT", "NN", "VBD", "NNP", "IN", "DT", "NN");
+		double exact = enumerated(input, "a", sentenceSpec);
+		for (int beamWidth : new int[] { 1, 2, 10 }) {
+			Part3.Result beam = Part3.generateResult(input, "a", sentenceSpec, "BEAM", new Part3.SearchOptions().setBeamWidth(beamWidth));
+			assertTrue(beam.getLogProbability() <= exact, "beam width " + beamWidth);
+		}
+		// A beam wide enough to keep every partial sequence is exact
+		Part3.Result wide = Part3.generateResult(input, "a", sentenceSpec, "BEAM", new Part3.SearchOptions().setBeamWidth(TestGraphs.ALL));
+		assertEquals(exact, wide.getLogProbability(), 1e-9);
+	}
+
+	@Test
+	void perPositionPruning() {
+		ArrayList<String> sentenceSpec = spec("DT", "NN", "VBD", "NNP", "IN", "DT", "NN");
+		for (String strategy : new String[] { "BREADTH_FIRST", "DEPTH_FIRST", "HEURISTIC" }) {
+			// The same threshold at every position is the global one
+			Part3.Result global = Part3.generateResult(input, "a", sentenceSpec, strategy,
+					new Part3.SearchOptions().setProbabilityFloor(0.002).setMaxBranching(20));
+			Part3.Result uniform = Part3.generateResult(input, "a", sentenceSpec, strategy,
+					new Part3.SearchOptions().setProbabilityFloors(0.002, 0.002, 0.002, 0.002, 0.002, 0.002).setMaxBranchings(20, 20, 20, 20, 20, 20));
+			assertEquals(global.getSentence(), uniform.getSentence());
+			assertEquals(global.getStats().getFloorPruned(), uniform.getStats().getFloorPruned());
+			assertEquals(global.getStats().getDegreePruned(), uniform.getStats().getDegreePruned());
+
+			// A cap of 1 at the root only keeps its most probable edge
+			Part3.Result root = Part3.generateResult(input, "a", sentenceSpec, strategy, new Part3.SearchOptions().setMaxBranchings(1));
+			Part3.Result exact = Part3.generateResult(input, "a", sentenceSpec, strategy, new Part3.SearchOptions());
+			int bucket = new Part3.Spec(input, sentenceSpec).getBucket(input.getWordId("a"), 1);
+			assertEquals(input.getEdgeEnd(bucket) - input.getEdgeStart(bucket) - 1, root.getStats().getDegreePruned());
+			assertEquals(input.getWord(input.getTarget(input.getEdgeStart(bucket))), root.getWords().get(1));
+			assertTrue(root.getLogProbability() <= exact.getLogProbability());
+		}
+		assertThrows(IllegalArgumentException.class, () -> new Part3.SearchOptions().setProbabilityFloors(0.1, 2));
+		assertThrows(IllegalArgumentException.class, () -> new Part3.SearchOptions().setMaxBranchings(3, 0));
+	}
+
+	@Test
+	void noSentence() {
+		String text = Part3.generate(input, "zzqq", spec("NNP", "VBD"), "VITERBI");
+		assertTrue(text.startsWith("No sentence found"), text);
+		Part3.Result result = Part3.generateResult(input, "a", spec("DT", "ZZ"), "HEURISTIC", new Part3.SearchOptions());
+		assertFalse(result.isFound());
+		assertEquals(Double.NEGATIVE_INFINITY, result.getLogProbability());
+	}
+
+	@Test
+	void formatsBatchResultsWithoutStats() {
+		ArrayList<String> lines = new ArrayList<String>();
+		Part3.generateBatch(input, spec("NNP", "VBD", "DT", "NN"), Arrays.asList("benjamin", "hans"),
+				(startingWord, result) -> lines.add(Part3.format(result)));
+		assertEquals(2, lines.size());
+		for (String line : lines) {
+			assertTrue(line.startsWith("\"") && !line.contains("nodes considered"), line);
+		}
+		assertEquals(Part3.format(Part3.generateResult(input, "benjamin", spec("NNP", "VBD", "DT", "NN"), "VITERBI", new Part3.SearchOptions())).split("\n")[0],
+				lines.get(0));
+	}
+
+	@Test
+	void unknownStrategy() {
+		assertNull(Part3.generate(input, "a", spec("DT", "NN"), "BOGUS"));
+		assertNull(Part3.generate(input, "zzqq", spec("DT", "NN"), "BOGUS"));
+		assertNull(Part3.generate(input, "a", spec("DT", "NN"), "BOGUS", new Part3.SearchOptions().setEndWord("king")));
+	}
+
+	@Test
+	void approximateStrategiesRejectEndWord() {
+		Part3.SearchOptions options = new Part3.SearchOptions().setEndWord("king");
+		assertThrows(IllegalArgumentException.class, () -> Part3.generate(input, "a", spec("DT", "NN"), "BEAM", options));
+	}
+
+	@Test
+	void endWordMatchesEnumeration() {
+		ArrayList<String> sentenceSpec = spec("DT", "NN", "VBD", "NNP", "IN", "DT", "NN");
+		Map<String, Double> best = new HashMap<String, Double>();
+		for (Part3.Result result : Part3.generateTopK(input, "a", sentenceSpec, TestGraphs.ALL)) {
+			String end = result.getWords().get(result.getWords().size() - 1);
+			best.merge(end, result.getLogProbability(), Math::max);
+		}
+		assertFalse(best.isEmpty());
+		for (Map.Entry<String, Double> entry : best.entrySet()) {
+			for (String strategy : EXACT) {
+				Part3.Result result = Part3.generateResult(input, "a", sentenceSpec, strategy, new Part3.SearchOptions().setEndWord(entry.getKey()));
+				assertEquals(entry.getValue(), result.getLogProbability(), 0, strategy + " " + entry.getKey());
+				assertEquals(entry.getKey(), result.getWords().get(result.getWords().size() - 1));
+			}
+		}
+		assertFalse(Part3.generateResult(input, "a", sentenceSpec, "VITERBI", new Part3.SearchOptions().setEndWord("zzqq")).isFound());
+	}
+
+	@Test
+	void topKIsSortedAndDistinct() {
+		List<Part3.Result> results = Part3.generateTopK(input, "benjamin", spec("NNP", "VBD", "DT", "NN"), 20);
+		Map<String, Double> seen = new HashMap<String, Double>();
+		for (int i = 0; i < results.size(); i++) {
+			if (i > 0) {
+				assertTrue(results.get(i).getLogProbability() <= results.get(i - 1).getLogProbability());
+			}
+			assertNull(seen.put(results.get(i).getSentence(), results.get(i).getLogProbability()));
+		}
+	}
+
+	@Test
+	void topKRejectsNonPositiveK() {
+		assertThrows(IllegalArgumentException.class, () -> Part3.generateTopK(input, "benjamin", spec("NNP", "VBD"), 0));
+		assertThrows(IllegalArgumentException.class, () -> Part3.generateTopK(input, "zzqq", spec("NNP", "VBD"), -1));
+	}
+}
@@ -0,0 +1,133 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+ * Graphs written as snapshots and mapped back, against the heap graphs they were written from.
+ */
+class SnapshotTest {
+	@TempDir
+	Path directory;
+
+	Path write(Part3.Graph graph) throws IOException {
+		Path path = directory.resolve("graph.snapshot");
+		Part3.Snapshot.write(graph, path);
+		return path;
+	}
+
+	static void assertSameVocabulary(Part3.Graph expected, Part3.Graph actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int word = 0; word < expected.size(); word++) {
+			assertEquals(expected.getWord(word), actual.getWord(word));
+			assertEquals(word, actual.getWordId(expected.getWord(word)), expected.getWord(word));
+		}
+		assertEquals(expected.getTagCount(), actual.getTagCount());
+		for (int pos = 0; pos < expected.getTagCount(); pos++) {
+			assertEquals(expected.getTag(pos), actual.getTag(pos));
+			assertEquals(pos, actual.getTagId(expected.getTag(pos)));
+		}
+		assertEquals(-1, actual.getWordId("zzqq"));
+		assertEquals(-1, actual.getTagId("ZZ"));
+	}
+
+	@Test
+	void mapsTheSameIds() throws IOException {
+		Part3.Graph input = TestGraphs.input();
+		Path path = write(input);
+		assertTrue(Part3.Snapshot.isSnapshot(path));
+		assertFalse(Part3.Snapshot.isSnapshot(Paths.get("src/input.txt")));
+		assertSameVocabulary(input, Part3.open(path));
+	}
+
+	@Test
+	void findsWordsInUnsignedByteOrder() throws IOException {
+		// Bytes of "é", "ü" and "日" are negative as signed bytes, so a signed comparison sorts them first
+		Part3.Graph graph = Part3.load("a/DT//éclair/NN//0.5\n"
+				+ "a/DT//über/NN//0.5\n"
+				+ "über/NN//zebra/NN//1\n"
+				+ "éclair/NN//日本/NN//1\n"
+				+ "zebra/NN//a/DT//1\n"
+				+ "日本/NN//éclair/NN//1\n");
+		Part3.Graph mapped = Part3.Snapshot.map(write(graph));
+		assertSameVocabulary(graph, mapped);
+		assertEquals(-1, mapped.getWordId("é"));
+		assertEquals(-1, mapped.getWordId("éclairs"));
+	}
+
+	@Test
+	void alignsEverySection() throws IOException {
+		ByteBuffer header = ByteBuffer.wrap(Files.readAllBytes(write(TestGraphs.input()))).order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals(Part3.Snapshot.MAGIC, header.getInt(0));
+		assertEquals(Part3.Snapshot.VERSION, header.getInt(4));
+		// { offset, length } of every section, in file order
+		long[][] sections = new long[Part3.Snapshot.SECTIONS][];
+		for (int s = 0; s < sections.length; s++) {
+			sections[s] = new long[] { header.getLong(6 * 4 + s * 16), header.getLong(6 * 4 + s * 16 + 8) };
+			assertEquals(0, sections[s][0] % 8, "section " + s);
+		}
+		Arrays.sort(sections, (a, b) -> Long.compare(a[0], b[0]));
+		long end = Part3.Snapshot.HEADER_SIZE;
+		for (long[] section : sections) {
+			assertTrue(section[0] >= end, "section at " + section[0] + " overlaps the one before it");
+			end = section[0] + section[1];
+		}
+		assertTrue(end <= header.capacity());
+	}
+
+	@Test
+	void everyStrategyMatchesTheHeapGraph() throws IOException {
+		Part3.Graph input = TestGraphs.input();
+		Part3.Graph mapped = Part3.open(write(input));
+		String[][] queries = {
+			{ "hans", "NNP", "VBD", "DT", "NN" },
+			{ "a", "DT", "NN", "VBD", "NNP" },
+			{ "benjamin", "NNP", "VBD", "DT", "JJS", "NN" },
+			{ "a", "DT", "NN", "VBD", "NNP", "IN", "DT", "NN" },
+		};
+		for (String strategy : Part3.STRATEGIES) {
+			for (String[] query : queries) {
+				ArrayList<String> sentenceSpec = TestGraphs.spec(Arrays.copyOfRange(query, 1, query.length));
+				Part3.Result expected = Part3.generateResult(input, query[0], sentenceSpec, strategy, new Part3.SearchOptions());
+				Part3.Result actual = Part3.generateResult(mapped, query[0], sentenceSpec, strategy, new Part3.SearchOptions());
+				assertEquals(expected.getSentence(), actual.getSentence(), strategy + " " + Arrays.toString(query));
+				assertEquals(expected.getLogProbability(), actual.getLogProbability(), 0, strategy + " " + Arrays.toString(query));
+				assertEquals(expected.getStats().getEdgesExamined(), actual.getStats().getEdgesExamined(), strategy + " " + Arrays.toString(query));
+			}
+		}
+	}
+
+	@Test
+	void rejectsWrongMagicOrVersion() throws IOException {
+		byte[] bytes = Files.readAllBytes(write(TestGraphs.input()));
+		Path corrupt = directory.resolve("corrupt.snapshot");
+
+		byte[] magic = bytes.clone();
+		magic[0] ^= 1;
+		Files.write(corrupt, magic);
+		assertFalse(Part3.Snapshot.isSnapshot(corrupt));
+		assertThrows(IOException.class, () -> Part3.Snapshot.map(corrupt));
+
+		byte[] version = bytes.clone();
+		ByteBuffer.wrap(version).order(ByteOrder.LITTLE_ENDIAN).putInt(4, Part3.Snapshot.VERSION + 1);
+		Files.write(corrupt, version);
+		assertTrue(Part3.Snapshot.isSnapshot(corrupt));
+		assertThrows(IOException.class, () -> Part3.Snapshot.map(corrupt));
+		assertThrows(IOException.class, () -> Part3.open(corrupt));
+
+		Files.write(corrupt, Arrays.copyOf(bytes, Part3.Snapshot.HEADER_SIZE - 1));
+		assertThrows(IOException.class, () -> Part3.Snapshot.map(corrupt));
+	}
+}
@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/*
+ * SuffixTable, built backward over the reverse index, against a forward DP over every word.
+ */
+class SuffixTableTest {
+	@Test
+	void matchesForwardDp() {
+		Part3.Graph graph = Part3.load(CorpusGenerator.generate(new CorpusGenerator.Settings().setVocabulary(2000).setEdges(30000).setTagCount(4)));
+		Random random = new Random(3);
+		int checked = 0;
+		for (int t = 0; t < 20; t++) {
+			ArrayList<String> sentenceSpec = new ArrayList<String>();
+			int length = 3 + random.nextInt(6);
+			for (int i = 0; i < length; i++) {
+				sentenceSpec.add("T" + random.nextInt(4));
+			}
+			Part3.Spec spec = new Part3.Spec(graph, sentenceSpec);
+			if (!spec.isSatisfiable()) {
+				continue;
+			}
+			Part3.SuffixTable table = new Part3.SuffixTable(graph, spec);
+			double[] next = new double[graph.size()];
+			for (int i = length - 2; i >= 0; i--) {
+				double[] current = new double[graph.size()];
+				for (int word = 0; word < graph.size(); word++) {
+					current[word] = Double.NEGATIVE_INFINITY;
+					int bucket = spec.getBucket(word, i + 1);
+					for (int e = graph.getEdgeStart(bucket); e < graph.getEdgeEnd(bucket); e++) {
+						current[word] = Math.max(current[word], graph.getLogProbability(e) + next[graph.getTarget(e)]);
+					}
+					assertEquals(current[word], table.getLogProbability(i, word), 0, sentenceSpec + " position " + i + " word " + word);
+					checked++;
+				}
+				next = current;
+			}
+		}
+		assertTrue(checked > 0);
+	}
+}
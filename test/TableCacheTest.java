@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.junit.jupiter.api.Test;
+
+class TableCacheTest {
+	static class Table implements Part3.CachedTable {
+		final long bytes;
+		final ArrayList<String> sentenceSpec;
+
+		Table(long bytes) {
+			this(bytes, "DT", "NN");
+		}
+
+		Table(long bytes, String... sentenceSpec) {
+			this.bytes = bytes;
+			this.sentenceSpec = TestGraphs.spec(sentenceSpec);
+		}
+
+		public long getBytes() { return bytes; }
+		public ArrayList<String> getSentenceSpec() { return sentenceSpec; }
+	}
+
+	@Test
+	void buildsEachKeyOnce() throws Exception {
+		final Part3.TableCache<Table> cache = new Part3.TableCache<Table>(1000);
+		final AtomicInteger builds = new AtomicInteger();
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			ArrayList<Future<Table>> results = new ArrayList<Future<Table>>();
+			for (int i = 0; i < 8; i++) {
+				results.add(executor.submit(new Callable<Table>() {
+					public Table call() throws Exception {
+						start.await();
+						return cache.get("spec", new Callable<Table>() {
+							public Table call() throws Exception {
+								builds.incrementAndGet();
+								Thread.sleep(50);
+								return new Table(10);
+							}
+						});
+					}
+				}));
+			}
+			start.countDown();
+			for (Future<Table> result : results) {
+				assertSame(results.get(0).get(), result.get());
+			}
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(1, builds.get());
+		assertEquals(10, cache.getBytes());
+	}
+
+	@Test
+	void evictsLeastRecentlyUsedOverByteBound() {
+		Part3.TableCache<Table> cache = new Part3.TableCache<Table>(100);
+		final AtomicInteger builds = new AtomicInteger();
+		Callable<Table> build = new Callable<Table>() {
+			public Table call() {
+				builds.incrementAndGet();
+				return new Table(40);
+			}
+		};
+		cache.get("a", build);
+		cache.get("b", build);
+		cache.get("a", build);
+		cache.get("c", build); // 120 bytes, drops b
+		assertEquals(2, cache.size());
+		assertEquals(80, cache.getBytes());
+		cache.get("a", build);
+		assertEquals(3, builds.get());
+		cache.get("b", build);
+		assertEquals(4, builds.get());
+		assertTrue(cache.getBytes() <= 100);
+	}
+
+	@Test
+	void copiesOnlyRetainedTables() {
+		Part3.TableCache<Table> cache = new Part3.TableCache<Table>(100);
+		for (final String pos : new String[] { "NN", "VBD", "JJ" }) {
+			cache.get(pos, new Callable<Table>() {
+				public Table call() {
+					return new Table(30, "DT", pos);
+				}
+			});
+		}
+		Part3.TableCache<Table> copy = cache.copyRetaining(new Predicate<Table>() {
+			public boolean test(Table table) {
+				return !table.getSentenceSpec().contains("VBD");
+			}
+		});
+		assertEquals(2, copy.size());
+		assertEquals(60, copy.getBytes());
+		assertEquals(3, cache.size());
+
+		// Retained tables are not rebuilt, and the copy keeps the original's order and bound
+		final AtomicInteger builds = new AtomicInteger();
+		Callable<Table> build = new Callable<Table>() {
+			public Table call() {
+				builds.incrementAndGet();
+				return new Table(30);
+			}
+		};
+		copy.get("NN", build);
+		copy.get("JJ", build);
+		assertEquals(0, builds.get());
+		copy.get("VBD", build);
+		copy.get("RB", build); // 120 bytes, drops the least recently used NN
+		assertEquals(2, builds.get());
+		assertEquals(90, copy.getBytes());
+		copy.get("JJ", build);
+		assertEquals(2, builds.get());
+	}
+}
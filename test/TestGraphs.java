@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ * Graphs and helpers shared by the tests. input.txt is loaded once for every test class.
+ */
+final class TestGraphs {
+	// k large enough for generateTopK() to return every sentence of the templates in the tests
+	static final int ALL = 10000000;
+
+	private static Part3.Graph input;
+
+	private TestGraphs() {
+	}
+
+	static synchronized Part3.Graph input() {
+		if (input == null) {
+			try {
+				input = Part3.load(Paths.get("src/input.txt"));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return input;
+	}
+
+	// 400 words over tags T0, T1 and T2, small enough to enumerate every sentence of short templates
+	static Part3.Graph synthetic() {
+		return Part3.load(CorpusGenerator.generate(new CorpusGenerator.Settings().setVocabulary(400).setEdges(2000).setTagCount(3)));
+	}
+
+	static ArrayList<String> spec(String... tags) {
+		return new ArrayList<String>(Arrays.asList(tags));
+	}
+}